@@ -0,0 +1,112 @@
+package com.moneydance.modules.features.rebalance;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+// Benchmarks of the rebalancing hot path over synthetic portfolios. Run with "ant bench", which adds the gc
+// profiler to report allocation rate. SampleTime mode reports latency percentiles.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class RebalanceBenchmark {
+    @Param({"10", "1000", "100000", "1000000"})
+    public int positions;
+
+    @Param({"GREEDY", "EXACT"})
+    public String method;
+
+    private String[] names;
+    private String[] symbols;
+    private double[] targets;
+    private double[] shares;
+    private double[] prices;
+    private double cash;
+    private double totalValue;
+
+    private Vector<Vector<Object>> data;
+    private Vector<Vector<Object>> footer;
+    private FooterTableModel model;
+    private RebalanceEngine engine;
+
+    @Setup(Level.Trial)
+    public void createPortfolio() {
+        Random random = new Random(42);
+        names = new String[positions];
+        symbols = new String[positions];
+        targets = new double[positions];
+        shares = new double[positions];
+        prices = new double[positions];
+        cash = 10000.0;
+        totalValue = cash;
+        for (int i = 0; i < positions; i++) {
+            names[i] = "Security " + i;
+            symbols[i] = "S" + i;
+            shares[i] = 10 + random.nextInt(1000);
+            prices[i] = 1.0 + random.nextDouble() * 200.0;
+            totalValue += shares[i] * prices[i];
+            targets[i] = 1.0 / positions;
+        }
+
+        data = buildData();
+        footer = buildFooter();
+        model = new FooterTableModel(buildData(), buildFooter(), RebalanceRows.columnNames(),
+                RebalanceRows.columnTypes(), null);
+        engine = new RebalanceEngine(positions);
+        engine.setThresholds(0.0001, 500.0);
+        engine.setMethod(RebalanceEngine.Method.valueOf(method));
+        RebalanceRows.load(engine, data, footer, totalValue);
+    }
+
+    private Vector<Vector<Object>> buildData() {
+        Vector<Vector<Object>> rows = new Vector<>();
+        for (int i = 0; i < positions; i++) {
+            double value = shares[i] * prices[i];
+            RebalanceRows.createEntry(rows, names[i], symbols[i], targets[i], value / totalValue, shares[i],
+                    prices[i], value);
+        }
+        return rows;
+    }
+
+    private Vector<Vector<Object>> buildFooter() {
+        Vector<Vector<Object>> rows = new Vector<>();
+        RebalanceRows.createEntry(rows, "Cash", null, 0.0, cash / totalValue, cash, 1.0, cash);
+        RebalanceRows.createTotalEntry(rows, totalValue);
+        return rows;
+    }
+
+    // The engine alone, over preloaded primitive columns.
+    @Benchmark
+    public RebalanceEngine engine() {
+        engine.rebalance();
+        return engine;
+    }
+
+    // The path taken by AccountLoader.load: rows in, plan written back to rows.
+    @Benchmark
+    public Vector<Vector<Object>> rebalanceRows() {
+        RebalanceRows.rebalance(engine, data, footer, totalValue);
+        return data;
+    }
+
+    // The path taken by the window, RebalanceRows.rebalance(engine, FooterTableModel, totalValue, scales): the
+    // model's columns in, RebalanceEngine.rebalance(), plan written back to the model.
+    @Benchmark
+    public FooterTableModel rebalanceModel() {
+        RebalanceRows.rebalance(engine, model, totalValue, null);
+        return model;
+    }
+
+    // Building the table rows, as fillRebalanceTable does with createEntry.
+    @Benchmark
+    public Vector<Vector<Object>> createRows() {
+        Vector<Vector<Object>> rows = buildData();
+        rows.addAll(buildFooter());
+        return rows;
+    }
+}
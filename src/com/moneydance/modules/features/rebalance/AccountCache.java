@@ -0,0 +1,133 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import com.infinitekind.moneydance.model.Account;
+import com.infinitekind.moneydance.model.AccountBook;
+import com.infinitekind.moneydance.model.AccountListener;
+import com.infinitekind.moneydance.model.CurrencyListener;
+import com.infinitekind.moneydance.model.CurrencyTable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+// Accounts and balances used by a window, so that recomputing a plan costs only arithmetic. Accounts are resolved
+// by ID once and then held (and their balances keyed) by ID. A balance is read from Moneydance once and kept
+// until Moneydance reports a change to that account: new transactions arrive as balance changes of the accounts
+// they touch. A change to a security account also invalidates the recursive balances of its ancestors. A price
+// change invalidates all recursive balances, since they include the value of securities.
+//
+// The maps are concurrent and each entry is computed at most once, by computeIfAbsent, without a lock over the whole
+// cache, so that BatchRebalancer's threads load accounts in parallel. An invalidation waits for a computation of
+// the same entry in progress, so it cannot be undone by a stale value.
+class AccountCache implements AccountListener, CurrencyListener {
+    private final AccountBook book;
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();         // By account ID
+    private final Map<String, Long> balances = new ConcurrentHashMap<>();            // By account ID
+    private final Map<String, Long> recursiveBalances = new ConcurrentHashMap<>();   // By account ID
+
+    AccountCache(AccountBook book) {
+        this.book = book;
+        book.addAccountListener(this);
+        book.getCurrencies().addCurrencyListener(this);
+    }
+
+    void close() {
+        book.removeAccountListener(this);
+        book.getCurrencies().removeCurrencyListener(this);
+    }
+
+    // Null if the book has no such account.
+    Account getAccount(String accountId) {
+        return accounts.computeIfAbsent(accountId, book::getAccountByUUID);
+    }
+
+    long getBalance(Account account) {
+        return balances.computeIfAbsent(account.getUUID(), id -> account.getBalance());
+    }
+
+    long getRecursiveBalance(Account account) {
+        return recursiveBalances.computeIfAbsent(account.getUUID(), id -> account.getRecursiveBalance());
+    }
+
+    // Total value of an account, in units of its currency.
+    double getTotalValue(String accountId) {
+        Account account = getAccount(accountId);
+        return getRecursiveBalance(account) / Math.pow(10.0, account.getCurrencyType().getDecimalPlaces());
+    }
+
+    private void invalidate(Account account) {
+        balances.remove(account.getUUID());
+        for (Account a = account; a != null; a = a.getParentAccount()) {
+            recursiveBalances.remove(a.getUUID());
+        }
+    }
+
+    private void forget(Account account) {
+        accounts.remove(account.getUUID());
+        invalidate(account);
+    }
+
+
+    // AccountListener:
+    //
+    @Override
+    public void accountAdded(Account parentAccount, Account newAccount) {
+        invalidate(parentAccount);
+    }
+
+    @Override
+    public void accountBalanceChanged(Account newAccount) {
+        invalidate(newAccount);
+    }
+
+    @Override
+    public void accountDeleted(Account parentAccount, Account newAccount) {
+        forget(newAccount);
+        invalidate(parentAccount);
+    }
+
+    @Override
+    public void accountModified(Account modifiedAccount) {
+        invalidate(modifiedAccount);
+    }
+
+
+    // CurrencyListener:
+    //
+    @Override
+    public void currencyTableModified(CurrencyTable table) {
+        recursiveBalances.clear();
+    }
+}
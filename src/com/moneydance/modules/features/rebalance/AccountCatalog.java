@@ -0,0 +1,222 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import com.infinitekind.moneydance.model.Account;
+import com.infinitekind.moneydance.model.Account.AccountType;
+import com.infinitekind.moneydance.model.AccountBook;
+import com.infinitekind.moneydance.model.AccountListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+// The investment accounts that can be rebalanced (active, with a positive balance), anywhere in the account tree.
+// The tree is walked once; after that, Moneydance's account events add, remove, or rename single entries.
+// Accounts are identified by ID, since names need not be unique. Each is labeled with its name, or with its full
+// path (e.g. "Retirement:Brokerage") where several eligible accounts share the name. The list of IDs handed out,
+// sorted by label, and the labels are rebuilt only after a change.
+class AccountCatalog implements AccountListener {
+    private final AccountBook book;
+    private final Runnable changed;
+    private final Map<String, Account> accountsById = new HashMap<>();     // Eligible accounts
+    private final Map<String, String> namesById = new HashMap<>();
+    private final Map<String, Integer> nameCounts = new HashMap<>();       // Name -> number of accounts with it
+    private List<String> ids;
+    private Map<String, String> labels;                                     // By ID
+
+    AccountCatalog(AccountBook book, Runnable changed) {
+        this.book = book;
+        this.changed = changed;
+        if (book != null) {
+            book.addAccountListener(this);
+            addTree(book.getRootAccount());
+        }
+    }
+
+    void close() {
+        if (book != null) {
+            book.removeAccountListener(this);
+        }
+    }
+
+    // IDs of the eligible accounts, sorted by label.
+    synchronized List<String> getAccountIds() {
+        build();
+        return ids;
+    }
+
+    // The account's label, or if it is no longer eligible, its name.
+    synchronized String getLabel(String id) {
+        build();
+        String label = labels.get(id);
+        if (label == null) {
+            Account account = book == null ? null : book.getAccountByUUID(id);
+            label = account == null ? "" : account.getAccountName();
+        }
+        return label;
+    }
+
+    // ID of the eligible account with this label or full path, or null. A name that several accounts share
+    // matches none of them.
+    synchronized String findAccount(String nameOrPath) {
+        build();
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            if (label.getValue().equals(nameOrPath)) {
+                return label.getKey();
+            }
+        }
+        for (Account account : accountsById.values()) {
+            if (nameOrPath.equals(account.getFullAccountName())) {
+                return account.getUUID();
+            }
+        }
+        return null;
+    }
+
+    private void build() {
+        if (ids == null) {
+            labels = new HashMap<>(namesById.size() * 2);
+            for (Map.Entry<String, String> e : namesById.entrySet()) {
+                String name = e.getValue();
+                labels.put(e.getKey(), nameCounts.get(name) > 1 ? accountsById.get(e.getKey()).getFullAccountName()
+                        : name);
+            }
+            List<String> list = new ArrayList<>(labels.keySet());
+            list.sort(Comparator.comparing((String id) -> labels.get(id)).thenComparing(Comparator.naturalOrder()));
+            ids = Collections.unmodifiableList(list);
+        }
+    }
+
+    private static boolean isEligible(Account account) {
+        return account.getAccountType() == AccountType.INVESTMENT
+                && !account.getAccountIsInactive()
+                && account.getCurrentBalance() > 0;
+    }
+
+    // Securities cannot contain investment accounts, so the walk stops at an investment account.
+    private synchronized boolean addTree(Account account) {
+        boolean modified = update(account);
+        if (account.getAccountType() != AccountType.INVESTMENT) {
+            for (Account a : account.getSubAccounts()) {
+                modified |= addTree(a);
+            }
+        }
+        return modified;
+    }
+
+    private synchronized boolean removeTree(Account account) {
+        boolean modified = remove(account.getUUID());
+        if (account.getAccountType() != AccountType.INVESTMENT) {
+            for (Account a : account.getSubAccounts()) {
+                modified |= removeTree(a);
+            }
+        }
+        return modified;
+    }
+
+    // Bring one account's entry up to date. Returns whether the catalog changed.
+    private synchronized boolean update(Account account) {
+        String id = account.getUUID();
+        String name = isEligible(account) ? account.getAccountName() : null;
+        String oldName = namesById.get(id);
+        if (name == null ? oldName == null : name.equals(oldName)) {
+            return false;
+        }
+        remove(id);
+        if (name != null) {
+            accountsById.put(id, account);
+            namesById.put(id, name);
+            nameCounts.merge(name, 1, Integer::sum);
+        }
+        ids = null;
+        return true;
+    }
+
+    private synchronized boolean remove(String id) {
+        String name = namesById.remove(id);
+        if (name == null) {
+            return false;
+        }
+        accountsById.remove(id);
+        if (nameCounts.merge(name, -1, Integer::sum) == 0) {
+            nameCounts.remove(name);
+        }
+        ids = null;
+        return true;
+    }
+
+    // Renaming a group changes the full paths of the accounts in it, and so the labels of those that share a name.
+    // Returns whether any label changed.
+    private synchronized boolean relabel() {
+        build();
+        Map<String, String> oldLabels = labels;
+        ids = null;
+        build();
+        return !labels.equals(oldLabels);
+    }
+
+    private void fireIf(boolean modified) {
+        if (modified) {
+            changed.run();
+        }
+    }
+
+
+    // AccountListener:
+    //
+    @Override
+    public void accountAdded(Account parentAccount, Account newAccount) {
+        fireIf(addTree(newAccount));
+    }
+
+    @Override
+    public void accountBalanceChanged(Account newAccount) {
+        fireIf(update(newAccount));
+    }
+
+    @Override
+    public void accountDeleted(Account parentAccount, Account newAccount) {
+        fireIf(removeTree(newAccount));
+    }
+
+    @Override
+    public void accountModified(Account modifiedAccount) {
+        boolean modified = update(modifiedAccount);
+        fireIf(relabel() || modified);
+    }
+}
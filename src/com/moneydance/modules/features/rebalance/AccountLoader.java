@@ -0,0 +1,144 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import com.infinitekind.moneydance.model.Account;
+import com.infinitekind.moneydance.model.Account.AccountType;
+import com.infinitekind.moneydance.model.AccountBook;
+import com.infinitekind.moneydance.model.CurrencyType;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.CancellationException;
+
+import static com.moneydance.modules.features.rebalance.RebalanceRows.*;
+
+
+// Reads an account's securities, cash, and targets and computes a plan for them. Does not touch Swing, so it
+// can run on a background thread.
+class AccountLoader {
+    private final AccountBook book;
+    private final TargetStore targetStore;
+    private final AccountCache accountCache;
+
+    AccountLoader(AccountBook book, TargetStore targetStore, AccountCache accountCache) {
+        this.book = book;
+        this.targetStore = targetStore;
+        this.accountCache = accountCache;
+    }
+
+    // Throws CancellationException if the calling thread is interrupted while loading.
+    AccountSnapshot load(String accountId, RebalancePolicy policy) {
+        Account account = accountCache.getAccount(accountId);
+        Vector<Vector<Object>> data = new Vector<>();
+        Vector<Vector<Object>> footer = new Vector<>();
+        CurrencyScales scales = new CurrencyScales(book.getCurrencies(), account.getCurrencyType());
+        double totalValue;
+        try (Timing.Span ignored = Metrics.ACCOUNT_LOAD.begin()) {
+            totalValue = fillRebalanceTable(account, data, footer, scales);
+        }
+
+        RebalanceEngine engine = new RebalanceEngine(data.size());
+        policy.applyTo(engine);
+        RebalanceRows.rebalance(engine, data, footer, totalValue, scales);
+        return new AccountSnapshot(accountId, account.getAccountName(), account.getCurrencyType(), totalValue, data,
+                footer, engine, scales);
+    }
+
+    private double fillRebalanceTable(Account account, Vector<Vector<Object>> data, Vector<Vector<Object>> footer,
+                                      CurrencyScales scales) {
+        String accountId = account.getUUID();
+        double totalValue = accountCache.getTotalValue(accountId);
+        Map<String, Double> targets = targetStore.getTargets(accountId);
+
+        // Securities
+        for (Account a : account.getSubAccounts()) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("Loading " + account.getAccountName() + " cancelled");
+            }
+            CurrencyType ct = a.getCurrencyType();
+            if (a.getAccountType() == AccountType.SECURITY
+                    && !a.getAccountIsInactive()
+                    && !ct.getHideInUI()
+                    && ct.getCurrencyType() == CurrencyType.Type.SECURITY) {
+                createEntry(data, targets, a, a.getAccountName(), ct.getTickerSymbol(), totalValue, scales);
+                scales.setBalance(a.getAccountName(), accountCache.getBalance(a));
+            }
+        }
+        Map<Object, Vector<Object>> rowsByName = new HashMap<>(data.size() * 2);
+        for (Vector<Object> entry : data) {
+            rowsByName.putIfAbsent(entry.get(NAME_COL), entry);
+        }
+        for (Map.Entry<String, Double> target : targets.entrySet()) {
+            String s = target.getKey();
+            Vector<Object> entry = rowsByName.get(s);
+            if (entry == null) {
+                entry = newPseudoEntry(s);
+                data.add(entry);
+                rowsByName.put(s, entry);
+            }
+            entry.set(TARGET_COL, target.getValue());
+        }
+
+        // Cash
+        if (account.getCurrencyType().getCurrencyType() == CurrencyType.Type.CURRENCY) {
+            createEntry(footer, targets, account, "Cash", null, totalValue, scales)
+                    .set(TARGET_COL, targetStore.getCashTarget(accountId));
+        }
+
+        // Total value
+        createTotalEntry(footer, totalValue);
+        return totalValue;
+    }
+
+    private Vector<Object> createEntry(Vector<Vector<Object>> entries, Map<String, Double> targets, Account security,
+                                       String name, String symbol, double totalValue, CurrencyScales scales) {
+        double shares = (double) accountCache.getBalance(security) / scales.unitsPerShare(security.getCurrencyType());
+        double price = 1.0 / security.getCurrencyType().getUserRate();
+        return RebalanceRows.createEntry(entries, name, symbol, targets.getOrDefault(name, 0.0),
+                shares * price / totalValue, shares, price, shares * price);
+    }
+
+    // User can add "pseudo securities" to accounts for calculation purposes. These securities appear only in
+    // Preferences, not in MD accounts.
+    Vector<Object> newPseudoEntry(String securityName) {
+        CurrencyType ct = book.getCurrencies().getCurrencyByName(securityName);
+        if (ct != null) {
+            return RebalanceRows.newEntry(securityName, ct.getTickerSymbol(), 0.0, 0.0, 0.0,
+                    1.0 / ct.getUserRate(), 0.0);
+        } else {
+            return RebalanceRows.newEntry(securityName, "unknown", 0.0, 0.0, 0.0, 1.0, 0.0);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.function.Function;
+
+
+// The settings of one account, encoded as one preference value: base64 of a version byte, the cash target, the
+// model the account follows ("" for none), and the securities and their targets. A security is recorded by its
+// Moneydance ID, which survives renaming, or by name if it has none. Targets are kept as binary doubles, so
+// reading them is exact and needs no parsing.
+final class AccountSettings {
+    static final int VERSION = 1;
+    private static final int BY_ID = 0;
+    private static final int BY_NAME = 1;
+
+    final String[] securities;
+    final double[] targets;
+    final double cashTarget;
+    final String model;
+
+    AccountSettings(String[] securities, double[] targets, double cashTarget, String model) {
+        this.securities = securities;
+        this.targets = targets;
+        this.cashTarget = cashTarget;
+        this.model = model;
+    }
+
+    // idOf gives a security's ID, or null to record it by name.
+    String encode(Function<String, String> idOf) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + securities.length * 24);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeDouble(cashTarget);
+            out.writeUTF(model);
+            out.writeInt(securities.length);
+            for (int i = 0; i < securities.length; i++) {
+                String id = idOf.apply(securities[i]);
+                out.writeByte(id == null ? BY_NAME : BY_ID);
+                out.writeUTF(id == null ? securities[i] : id);
+                out.writeDouble(targets[i]);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     // Not from a ByteArrayOutputStream
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    // nameOf gives the name of the security with an ID, or null if there is none any more, in which case its
+    // target is dropped. Throws IllegalArgumentException if the text is not settings of a known version.
+    static AccountSettings decode(String text, Function<String, String> nameOf) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(text)))) {
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unknown settings version " + version);
+            }
+            double cashTarget = in.readDouble();
+            String model = in.readUTF();
+            int n = in.readInt();
+            if (n < 0 || n > text.length()) {
+                throw new IllegalArgumentException("Corrupt settings");
+            }
+            String[] securities = new String[n];
+            double[] targets = new double[n];
+            int size = 0;
+            for (int i = 0; i < n; i++) {
+                int kind = in.readUnsignedByte();
+                String security = in.readUTF();
+                double target = in.readDouble();
+                String name = kind == BY_ID ? nameOf.apply(security) : security;
+                if (name != null) {
+                    securities[size] = name;
+                    targets[size++] = target;
+                }
+            }
+            return new AccountSettings(Arrays.copyOf(securities, size), Arrays.copyOf(targets, size), cashTarget,
+                    model);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated settings", e);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import com.infinitekind.moneydance.model.CurrencyType;
+
+import java.util.Vector;
+
+
+// An account's positions and the plan computed for them, built off the Swing thread by AccountLoader. The
+// snapshot is not modified after it is published; the receiver takes ownership of its rows and engine.
+final class AccountSnapshot {
+    final String accountId;
+    final String accountName;
+    final CurrencyType currency;
+    final double totalValue;
+    final Vector<Vector<Object>> data;
+    final Vector<Vector<Object>> footer;
+    final RebalanceEngine engine;     // Holds the positions and plan, row for row with data
+    final CurrencyScales scales;
+
+    AccountSnapshot(String accountId, String accountName, CurrencyType currency, double totalValue,
+                    Vector<Vector<Object>> data, Vector<Vector<Object>> footer, RebalanceEngine engine,
+                    CurrencyScales scales) {
+        this.accountId = accountId;
+        this.accountName = accountName;
+        this.currency = currency;
+        this.totalValue = totalValue;
+        this.data = data;
+        this.footer = footer;
+        this.engine = engine;
+        this.scales = scales;
+    }
+}
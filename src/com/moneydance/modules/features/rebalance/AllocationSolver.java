@@ -0,0 +1,175 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import java.util.Arrays;
+
+
+// Integer share allocation by branch and bound. Given the positions that are short of their targets (their
+// shortfall in value and their price) and the funds available, find the number of shares to buy of each that
+// minimizes the total remaining shortfall, |shortfall - shares * price| summed over the positions, without spending
+// more than the funds. The search stops at a time limit and then returns the best allocation found so far.
+class AllocationSolver {
+    private static final double EPSILON = 1e-9;
+    private static final int NODES_BETWEEN_CLOCK_CHECKS = 128;
+
+    private long timeLimitNanos = 5_000_000;   // 5 ms
+
+    private int size;
+    private double[] shortfall = new double[16];
+    private double[] price = new double[16];
+    private long[] maxShares = new long[16];
+    private long[] shares = new long[16];         // Best allocation found, by item
+    private double bestDrift;
+
+    // Search state. Items are searched in order of decreasing price, which prunes best.
+    private Integer[] order = new Integer[16];
+    private long[] trial = new long[16];
+    private double[] remainingShortfall = new double[17];   // Sum of shortfall over order[k..size-1]
+    private long deadline;
+    private int nodes;
+    private boolean timedOut;
+
+    void setTimeLimit(long millis) {
+        timeLimitNanos = millis * 1_000_000;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    // Add a position that could be bought, and return its item number.
+    int addItem(double shortfall, double price) {
+        if (size == this.shortfall.length) {
+            int capacity = size * 2;
+            this.shortfall = Arrays.copyOf(this.shortfall, capacity);
+            this.price = Arrays.copyOf(this.price, capacity);
+            maxShares = Arrays.copyOf(maxShares, capacity);
+            shares = Arrays.copyOf(shares, capacity);
+            order = Arrays.copyOf(order, capacity);
+            trial = Arrays.copyOf(trial, capacity);
+            remainingShortfall = Arrays.copyOf(remainingShortfall, capacity + 1);
+        }
+        this.shortfall[size] = shortfall;
+        this.price[size] = price;
+        shares[size] = 0;
+        return size++;
+    }
+
+    // Start the search from an allocation (e.g. the greedy one). It is used only if it fits in the funds.
+    void setShares(int item, long shares) {
+        this.shares[item] = shares;
+    }
+
+    long getShares(int item) {
+        return shares[item];
+    }
+
+    // Returns false if the time limit cut the search short, in which case getShares is the best allocation found.
+    boolean solve(double funds) {
+        double spent = 0.0;
+        double drift = 0.0;
+        for (int i = 0; i < size; i++) {
+            // Buying more than one share beyond the shortfall can only increase drift
+            maxShares[i] = (long) Math.ceil(shortfall[i] / price[i]);
+            shares[i] = Math.min(Math.max(shares[i], 0), maxShares[i]);
+            spent += shares[i] * price[i];
+            drift += Math.abs(shortfall[i] - shares[i] * price[i]);
+            order[i] = i;
+        }
+        if (spent > funds + EPSILON) {
+            Arrays.fill(shares, 0, size, 0);
+            drift = sumOfShortfalls();
+        }
+        bestDrift = drift;
+
+        Arrays.sort(order, 0, size, (a, b) -> Double.compare(price[b], price[a]));
+        remainingShortfall[size] = 0.0;
+        for (int k = size - 1; k >= 0; k--) {
+            remainingShortfall[k] = remainingShortfall[k + 1] + shortfall[order[k]];
+        }
+
+        deadline = System.nanoTime() + timeLimitNanos;
+        nodes = 0;
+        timedOut = false;
+        search(0, funds, 0.0);
+        return !timedOut;
+    }
+
+    private double sumOfShortfalls() {
+        double sum = 0.0;
+        for (int i = 0; i < size; i++) {
+            sum += shortfall[i];
+        }
+        return sum;
+    }
+
+    private void search(int k, double funds, double drift) {
+        if (timedOut) {
+            return;
+        }
+        if (++nodes % NODES_BETWEEN_CLOCK_CHECKS == 0 && System.nanoTime() > deadline) {
+            timedOut = true;
+            return;
+        }
+        // Lower bound: the remaining items' shortfall can shrink by no more than the remaining funds.
+        if (drift + Math.max(0.0, remainingShortfall[k] - funds) >= bestDrift - EPSILON) {
+            return;
+        }
+        if (k == size) {
+            bestDrift = drift;
+            for (int i = 0; i < size; i++) {
+                shares[order[i]] = trial[i];
+            }
+            return;
+        }
+
+        int item = order[k];
+        long most = Math.min(maxShares[item], (long) Math.floor((funds + EPSILON) / price[item]));
+        long closest = Math.min(most, Math.round(shortfall[item] / price[item]));
+        // Try the count that comes closest to the target first, then the others in order of distance from it
+        for (long n = closest, m = closest + 1; (n >= 0 || m <= most) && !timedOut; n--, m++) {
+            if (n >= 0) {
+                tryShares(k, item, n, funds, drift);
+            }
+            if (m <= most) {
+                tryShares(k, item, m, funds, drift);
+            }
+        }
+    }
+
+    private void tryShares(int k, int item, long n, double funds, double drift) {
+        trial[k] = n;
+        search(k + 1, funds - n * price[item], drift + Math.abs(shortfall[item] - n * price[item]));
+    }
+}
@@ -0,0 +1,297 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+// Replay the price histories of an account's securities through a policy: starting from cash invested at the
+// targets, on each date that a price changed, value the positions, rebalance them with the engine as the window
+// would, and trade. The histories are merged by date with a queue of cursors, so a run holds only the current
+// price of each security, and each run has its own cursors and engine, so several policies run in parallel.
+final class Backtest {
+    private final double initialValue;
+    private final double cashTarget;
+    private final long cashUnits;
+    private final List<String> names = new ArrayList<>();
+    private double[] targets = new double[16];
+    private PriceHistory[] histories = new PriceHistory[16];
+    private long[] unitsPerShare = new long[16];
+
+    Backtest(double initialValue, double cashTarget, long cashUnits) {
+        this.initialValue = initialValue;
+        this.cashTarget = cashTarget;
+        this.cashUnits = cashUnits;
+    }
+
+    void addSecurity(String name, double target, PriceHistory history, long unitsPerShare) {
+        int i = names.size();
+        if (i == targets.length) {
+            targets = Arrays.copyOf(targets, i * 2);
+            histories = Arrays.copyOf(histories, i * 2);
+            this.unitsPerShare = Arrays.copyOf(this.unitsPerShare, i * 2);
+        }
+        names.add(name);
+        targets[i] = target;
+        histories[i] = history;
+        this.unitsPerShare[i] = unitsPerShare;
+    }
+
+    // Run the policies in parallel, on a pool with one thread per core. Returns the results in the order of the
+    // policies.
+    List<BacktestResult> runAll(List<RebalancePolicy> policies, int startDate, int endDate)
+            throws InterruptedException {
+        List<BacktestResult> results = new ArrayList<>(policies.size());
+        if (policies.isEmpty()) {
+            return results;
+        }
+
+        int threads = Math.min(policies.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "ReBalance backtest");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<BacktestResult>> futures = new ArrayList<>(policies.size());
+            for (RebalancePolicy policy : policies) {
+                futures.add(pool.submit(() -> run(policy, startDate, endDate)));
+            }
+            for (Future<BacktestResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    // Dates are yyyymmdd. A security is bought once it has a price; until then its target is held in cash.
+    BacktestResult run(RebalancePolicy policy, int startDate, int endDate) {
+        int n = names.size();
+        Run run = new Run(n);
+
+        PriceHistory.Cursor[] cursors = new PriceHistory.Cursor[n];
+        DateQueue queue = new DateQueue(n);
+        for (int i = 0; i < n; i++) {
+            PriceHistory.Cursor cursor = histories[i].cursor();
+            while (cursor.date() <= startDate) {
+                run.price[i] = cursor.price();
+                cursor.advance();
+            }
+            cursors[i] = cursor;
+            if (cursor.date() <= endDate) {
+                queue.add(i, cursor.date());
+            }
+        }
+
+        // The initial purchase is not counted
+        run.step(new RebalancePolicy(0.0, Double.MAX_VALUE, policy.method), false);
+        policy.applyTo(run.engine);
+        while (!queue.isEmpty()) {
+            int date = queue.firstDate();
+            while (!queue.isEmpty() && queue.firstDate() == date) {
+                int i = queue.first();
+                PriceHistory.Cursor cursor = cursors[i];
+                run.price[i] = cursor.price();
+                cursor.advance();
+                if (cursor.date() <= endDate) {
+                    queue.replaceFirst(cursor.date());
+                } else {
+                    queue.removeFirst();
+                }
+            }
+            run.step(null, true);
+        }
+
+        return new BacktestResult(policy, run.days, run.tradeDays, run.trades,
+                run.days == 0 ? 0.0 : run.traded / (run.sumOfValues / run.days),
+                run.days == 0 ? 0.0 : run.sumOfDrift / run.days, run.maxDrift, run.totalValue());
+    }
+
+    // Securities ordered by the date of their next price: a binary heap of security indexes, with the dates kept
+    // alongside so that ordering them neither boxes nor calls the cursors.
+    private static final class DateQueue {
+        private final int[] securities;
+        private final int[] dates;
+        private int size;
+
+        DateQueue(int capacity) {
+            securities = new int[capacity];
+            dates = new int[capacity];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int first() {
+            return securities[0];
+        }
+
+        int firstDate() {
+            return dates[0];
+        }
+
+        void add(int security, int date) {
+            int i = size++;
+            while (i > 0 && dates[(i - 1) / 2] > date) {
+                securities[i] = securities[(i - 1) / 2];
+                dates[i] = dates[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            securities[i] = security;
+            dates[i] = date;
+        }
+
+        // The first security has a new date; move it to its place.
+        void replaceFirst(int date) {
+            siftDown(securities[0], date);
+        }
+
+        void removeFirst() {
+            size--;
+            if (size > 0) {
+                siftDown(securities[size], dates[size]);
+            }
+        }
+
+        private void siftDown(int security, int date) {
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && dates[child + 1] < dates[child]) {
+                    child++;
+                }
+                if (dates[child] >= date) {
+                    break;
+                }
+                securities[i] = securities[child];
+                dates[i] = dates[child];
+                i = child;
+            }
+            securities[i] = security;
+            dates[i] = date;
+        }
+    }
+
+    // The state of one run.
+    private class Run {
+        final RebalanceEngine engine;
+        final double[] price;
+        final double[] shares;
+        final int[] securities;     // Of the engine's rows
+        double cash = initialValue;
+        int days;
+        int tradeDays;
+        int trades;
+        double traded;
+        double sumOfValues;
+        double sumOfDrift;
+        double maxDrift;
+
+        Run(int n) {
+            engine = new RebalanceEngine(n);
+            engine.setCashUnits(cashUnits);
+            price = new double[n];
+            shares = new double[n];
+            securities = new int[n];
+        }
+
+        double totalValue() {
+            double total = cash;
+            for (int i = 0; i < shares.length; i++) {
+                total += shares[i] * price[i];
+            }
+            return total;
+        }
+
+        // Rebalance at the current prices, with the given policy or else the engine's, and trade.
+        void step(RebalancePolicy policy, boolean counted) {
+            double total = totalValue();
+            engine.clear();
+            engine.setTotalValue(total);
+            double drift = 0.0;
+            int rows = 0;
+            for (int i = 0; i < shares.length; i++) {
+                if (price[i] > 0.0) {
+                    double value = shares[i] * price[i];
+                    int row = engine.addPosition(targets[i], value / total, shares[i], price[i], value);
+                    engine.setUnitsPerShare(row, unitsPerShare[i]);
+                    securities[rows++] = i;
+                    drift += Math.abs(value / total - targets[i]);
+                }
+            }
+            engine.setCash(cash, cashTarget);
+            drift += Math.abs(cash / total - cashTarget);
+            if (policy != null) {
+                policy.applyTo(engine);
+            }
+            engine.rebalance();
+
+            int tradesToday = 0;
+            for (int row = 0; row < rows; row++) {
+                double buy = engine.getBuyShares(row);
+                double sell = engine.getSellShares(row);
+                if (buy != 0.0 || sell != 0.0) {
+                    int i = securities[row];
+                    shares[i] += buy - sell;
+                    traded += (buy + sell) * price[i];
+                    tradesToday++;
+                }
+            }
+            cash = engine.getCashResult() * total;
+
+            if (counted) {
+                days++;
+                trades += tradesToday;
+                tradeDays += tradesToday > 0 ? 1 : 0;
+                sumOfValues += total;
+                sumOfDrift += drift;
+                maxDrift = Math.max(maxDrift, drift);
+            } else {
+                traded = 0.0;
+            }
+        }
+    }
+}
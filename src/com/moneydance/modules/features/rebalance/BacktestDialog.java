@@ -0,0 +1,154 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+
+// Backtest an account's targets over a date range, with the current policy and, for comparison, percent
+// thresholds from tight to loose and never rebalancing.
+class BacktestDialog extends JDialog {
+    private static final String[] COLUMNS = {"Policy", "Days", "Trade Days", "Trades", "Turnover", "Average Drift",
+            "Max Drift", "Final Value"};
+    private static final double[] PERCENT_LIMITS = {0.01, 0.02, 0.05, 0.10};
+
+    private final Backtest backtest;
+    private final List<RebalancePolicy> policies = new ArrayList<>();
+    private final JTextField fromField;
+    private final JTextField toField;
+    private final JButton runButton = new JButton("Run");
+    private final JLabel status = new JLabel(" ");
+    private final DefaultTableModel model;
+
+    BacktestDialog(Frame owner, String accountName, Backtest backtest, RebalancePolicy current) {
+        super(owner, "Backtest " + accountName, false);
+        this.backtest = backtest;
+        policies.add(current);
+        for (double limit : PERCENT_LIMITS) {
+            policies.add(new RebalancePolicy(limit, Double.MAX_VALUE, current.method));
+        }
+        policies.add(new RebalancePolicy(Double.MAX_VALUE, Double.MAX_VALUE, current.method));
+
+        LocalDate today = LocalDate.now();
+        fromField = new JTextField(today.minusYears(20).toString(), 10);
+        toField = new JTextField(today.toString(), 10);
+        runButton.addActionListener(e -> run());
+        JPanel top = new JPanel();
+        top.add(new JLabel("From"));
+        top.add(fromField);
+        top.add(new JLabel("To"));
+        top.add(toField);
+        top.add(runButton);
+        top.add(status);
+
+        model = new DefaultTableModel(new Vector<>(Arrays.asList(COLUMNS)), 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        JTable table = new JTable(model);
+        table.setFillsViewportHeight(true);
+
+        getContentPane().add(top, BorderLayout.NORTH);
+        getContentPane().add(new JScrollPane(table), BorderLayout.CENTER);
+        setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        pack();
+        setLocationRelativeTo(owner);
+    }
+
+    private void run() {
+        int from;
+        int to;
+        try {
+            from = toDateInt(LocalDate.parse(fromField.getText().trim()));
+            to = toDateInt(LocalDate.parse(toField.getText().trim()));
+        } catch (DateTimeParseException e) {
+            status.setText("Dates are yyyy-mm-dd");
+            return;
+        }
+        runButton.setEnabled(false);
+        status.setText("Running...");
+        model.setRowCount(0);
+        new SwingWorker<List<BacktestResult>, Void>() {
+            @Override
+            protected List<BacktestResult> doInBackground() throws InterruptedException {
+                return backtest.runAll(policies, from, to);
+            }
+
+            @Override
+            protected void done() {
+                runButton.setEnabled(true);
+                status.setText(" ");
+                try {
+                    for (BacktestResult result : get()) {
+                        model.addRow(new Object[]{describe(result.policy), result.days, result.tradeDays,
+                                result.trades, String.format("%.2fx", result.turnover),
+                                String.format("%.2f%%", result.averageDrift * 100.0),
+                                String.format("%.2f%%", result.maxDrift * 100.0),
+                                String.format("%,.2f", result.finalValue)});
+                    }
+                } catch (Exception e) {
+                    status.setText("Backtest failed");
+                    e.printStackTrace(System.err);
+                }
+            }
+        }.execute();
+    }
+
+    private String describe(RebalancePolicy policy) {
+        String thresholds;
+        if (policy.percentLimit == Double.MAX_VALUE && policy.valueLimit == Double.MAX_VALUE) {
+            thresholds = "Never";
+        } else if (policy.valueLimit == Double.MAX_VALUE) {
+            thresholds = String.format("%.1f%%", policy.percentLimit * 100.0);
+        } else if (policy.percentLimit == Double.MAX_VALUE) {
+            thresholds = String.format("%,.0f", policy.valueLimit);
+        } else {
+            thresholds = String.format("%.1f%% or %,.0f", policy.percentLimit * 100.0, policy.valueLimit);
+        }
+        return (policy == policies.get(0) ? "Current: " : "") + thresholds;
+    }
+
+    private static int toDateInt(LocalDate date) {
+        return date.getYear() * 10000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+    }
+}
@@ -0,0 +1,60 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+
+// What a backtest of one policy found: how often it traded, how much, and how far the positions drifted from
+// their targets (the sum of the distances of the positions and cash from their targets, before trading) on the
+// days prices changed.
+final class BacktestResult {
+    final RebalancePolicy policy;
+    final int days;             // Dates with a price change
+    final int tradeDays;        // Days with at least one trade
+    final int trades;           // Buys and sells of one security on one day
+    final double turnover;      // Value traded, as a multiple of the average value of the account
+    final double averageDrift;
+    final double maxDrift;
+    final double finalValue;
+
+    BacktestResult(RebalancePolicy policy, int days, int tradeDays, int trades, double turnover, double averageDrift,
+                   double maxDrift, double finalValue) {
+        this.policy = policy;
+        this.days = days;
+        this.tradeDays = tradeDays;
+        this.trades = trades;
+        this.turnover = turnover;
+        this.averageDrift = averageDrift;
+        this.maxDrift = maxDrift;
+        this.finalValue = finalValue;
+    }
+}
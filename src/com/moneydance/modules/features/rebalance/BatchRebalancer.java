@@ -0,0 +1,97 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+
+// Compute plans for many accounts at once. Each account is loaded and rebalanced independently, so they run in
+// parallel on a pool with one thread per core; the total time is close to that of the slowest account.
+class BatchRebalancer {
+    private final AccountLoader loader;
+
+    BatchRebalancer(AccountLoader loader) {
+        this.loader = loader;
+    }
+
+    // Returns the snapshots in the order of the account IDs. An account that fails to load is reported and
+    // omitted.
+    List<AccountSnapshot> rebalanceAll(List<String> accountIds, RebalancePolicy policy)
+            throws InterruptedException {
+        List<AccountSnapshot> snapshots = new ArrayList<>(accountIds.size());
+        rebalanceAll(accountIds, policy, snapshots::add);
+        return snapshots;
+    }
+
+    // Hand the snapshots to the consumer, on the calling thread, in the order of the account IDs. At most two
+    // accounts per thread are loaded ahead of the consumer, so the snapshots need not all fit in memory at once.
+    void rebalanceAll(List<String> accountIds, RebalancePolicy policy, Consumer<AccountSnapshot> consumer)
+            throws InterruptedException {
+        if (accountIds.isEmpty()) {
+            return;
+        }
+
+        int threads = Math.min(accountIds.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "ReBalance batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Deque<Future<AccountSnapshot>> futures = new ArrayDeque<>();
+            Iterator<String> next = accountIds.iterator();
+            while (next.hasNext() || !futures.isEmpty()) {
+                while (next.hasNext() && futures.size() < 2 * threads) {
+                    String accountId = next.next();
+                    futures.add(pool.submit(() -> loader.load(accountId, policy)));
+                }
+                try {
+                    consumer.accept(futures.remove().get());
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(System.err);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
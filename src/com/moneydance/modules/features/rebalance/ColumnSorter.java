@@ -0,0 +1,101 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import javax.swing.table.TableRowSorter;
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+// Row sorter for a FooterTableModel that sorts by comparing the model's primitive columns, so sorting boxes no
+// cells. In place of a cell's value, the model wrapper hands the comparators the cell's (boxed once) model row,
+// and each column's comparator looks the row's values up in the model.
+class ColumnSorter extends TableRowSorter<FooterTableModel> {
+    ColumnSorter(FooterTableModel model) {
+        super(model);
+        setModelWrapper(new RowWrapper(model));
+    }
+
+    // The model's comparator, whatever comparators were set (which a structure change would discard anyway).
+    @Override
+    public Comparator<?> getComparator(int column) {
+        return getModel().getRowComparator(column);
+    }
+
+
+    private static class RowWrapper extends ModelWrapper<FooterTableModel, Integer> {
+        private final FooterTableModel model;
+        private Integer[] rows = new Integer[0];
+
+        RowWrapper(FooterTableModel model) {
+            this.model = model;
+        }
+
+        @Override
+        public FooterTableModel getModel() {
+            return model;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return model.getColumnCount();
+        }
+
+        @Override
+        public int getRowCount() {
+            return model.getRowCount();
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            return getIdentifier(row);
+        }
+
+        @Override
+        public String getStringValueAt(int row, int column) {
+            Object value = model.getValueAt(row, column);
+            return value == null ? "" : value.toString();
+        }
+
+        @Override
+        public Integer getIdentifier(int row) {
+            if (row >= rows.length) {
+                rows = Arrays.copyOf(rows, Math.max(row + 1, rows.length * 2));
+            }
+            if (rows[row] == null) {
+                rows[row] = row;
+            }
+            return rows[row];
+        }
+    }
+}
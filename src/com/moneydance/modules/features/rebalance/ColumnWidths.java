@@ -0,0 +1,155 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import javax.swing.*;
+import javax.swing.event.TableModelEvent;
+import javax.swing.table.TableCellRenderer;
+import javax.swing.table.TableColumn;
+import java.awt.*;
+import java.util.HashMap;
+import java.util.Map;
+
+
+// Widens a FooterTable's columns to fit their cells. Measuring a cell means laying out its rendered component,
+// which is costly, so the width of each rendered text is cached, only the cells a change touches are measured,
+// and of a large table only a sample of rows, plus the rows with each column's widest candidates (longest text,
+// largest and smallest number), are measured. Finding the candidates scans every row of every column, so it is
+// done only when a table is fitted whole (e.g. for a new model); a large change is fitted to a sample alone.
+// Columns only ever widen, so a column's preferred width is the running maximum of its cells' widths.
+class ColumnWidths {
+    private static final int SAMPLE_ROWS = 256;
+    private static final int MAX_CACHED_WIDTHS = 4096;
+
+    private final int cellPadding;
+    private final Map<String, Integer> textWidths = new HashMap<>();
+
+    ColumnWidths(int cellPadding) {
+        this.cellPadding = cellPadding;
+    }
+
+    // Widen the columns to fit the table's cells, or a sample of them and the widest candidates.
+    void fitTable(FooterTableBase table) {
+        FooterTableModel model = table.getDataModel();
+        fitRows(table, 0, model.getRowCount() - 1, 0, model.getColumnCount() - 1, true);
+    }
+
+    // Widen the columns to fit the cells a change of the table's model touched.
+    void fitChange(FooterTableBase table, TableModelEvent e) {
+        int rowCount = table.getDataModel().getRowCount();
+        if (e.getType() == TableModelEvent.DELETE || e.getFirstRow() == TableModelEvent.HEADER_ROW) {
+            return;     // Nothing new to fit; a new structure comes with a new model
+        }
+        int last = Math.min(e.getLastRow(), rowCount - 1);
+        int firstCol = e.getColumn() == TableModelEvent.ALL_COLUMNS ? 0 : e.getColumn();
+        int lastCol = e.getColumn() == TableModelEvent.ALL_COLUMNS ? table.getDataModel().getColumnCount() - 1
+                : e.getColumn();
+        fitRows(table, e.getFirstRow(), last, firstCol, lastCol, false);
+    }
+
+    // Widen columns firstCol..lastCol to fit rows first..last, or a sample of them if there are more than
+    // SAMPLE_ROWS. With candidates, a sampled column is also fitted to its widest candidates.
+    private void fitRows(FooterTableBase table, int first, int last, int firstCol, int lastCol, boolean candidates) {
+        int step = Math.max(1, (last - first + SAMPLE_ROWS) / SAMPLE_ROWS);
+        for (int col = firstCol; col <= lastCol; col++) {
+            int width = 0;
+            for (int row = first; row <= last; row += step) {
+                width = Math.max(width, measure(table, row, col));
+            }
+            if (candidates && step > 1) {
+                for (int row : widestCandidates(table.getDataModel(), col)) {
+                    width = Math.max(width, measure(table, row, col));
+                }
+            }
+            widen(table, col, width);
+        }
+    }
+
+    // Width of a model cell. The renderer is cheap to configure (it caches formatted values); laying it out is not.
+    private int measure(FooterTableBase table, int row, int col) {
+        TableCellRenderer renderer = table.getCellRenderer(row, col);
+        Object value = table.getDataModel().getValueAt(row, col);
+        Component comp = renderer.getTableCellRendererComponent(table, value, false, false, row, col);
+        if (!(comp instanceof JLabel)) {
+            return comp.getPreferredSize().width + cellPadding;
+        }
+        String text = ((JLabel) comp).getText();
+        Integer width = textWidths.get(text);
+        if (width == null) {
+            width = comp.getPreferredSize().width + cellPadding;
+            if (textWidths.size() >= MAX_CACHED_WIDTHS) {
+                textWidths.clear();
+            }
+            textWidths.put(text, width);
+        }
+        return width;
+    }
+
+    // Rows likely to hold a column's widest cell, found without rendering: the longest text, or the largest and
+    // smallest (e.g. most negative) numbers.
+    private static int[] widestCandidates(FooterTableModel model, int col) {
+        int first = -1;
+        int second = -1;
+        if (model.getColumnClass(col) == String.class) {
+            for (int row = 0; row < model.getRowCount(); row++) {
+                String value = model.getString(row, col);
+                if (value != null && (first == -1 || value.length() > model.getString(first, col).length())) {
+                    first = row;
+                }
+            }
+        } else {
+            for (int row = 0; row < model.getRowCount(); row++) {
+                double value = model.getDouble(row, col);
+                if (!Double.isNaN(value)) {
+                    if (first == -1 || value > model.getDouble(first, col)) {
+                        first = row;
+                    }
+                    if (second == -1 || value < model.getDouble(second, col)) {
+                        second = row;
+                    }
+                }
+            }
+        }
+        return first == -1 ? new int[0] : second == -1 ? new int[] {first} : new int[] {first, second};
+    }
+
+    private static void widen(JTable table, int col, int width) {
+        int viewCol = table.convertColumnIndexToView(col);
+        if (viewCol >= 0) {
+            TableColumn column = table.getColumnModel().getColumn(viewCol);
+            if (width > column.getPreferredWidth()) {
+                column.setPreferredWidth(width);
+            }
+        }
+    }
+}
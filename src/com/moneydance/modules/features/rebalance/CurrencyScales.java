@@ -0,0 +1,94 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import com.infinitekind.moneydance.model.CurrencyTable;
+import com.infinitekind.moneydance.model.CurrencyType;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+// Units per share or per unit of currency (10^decimal places), as Moneydance counts balances, computed once per
+// currency of an account instead of with Math.pow for every row. Securities are looked up by name, since that is
+// what a table row holds; one that is not found counts whole shares. Also the balances, in those units, of the
+// securities the account holds, so the exact methods start from Moneydance's counts rather than from shares.
+final class CurrencyScales {
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L,
+            10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L};
+
+    private final CurrencyTable currencies;
+    private final long cashUnits;
+    private final Map<String, Long> unitsByName = new HashMap<>();
+    private final Map<String, Long> balancesByName = new HashMap<>();
+
+    CurrencyScales(CurrencyTable currencies, CurrencyType cashCurrency) {
+        this.currencies = currencies;
+        this.cashUnits = unitsOf(cashCurrency);
+    }
+
+    static long unitsOf(CurrencyType currency) {
+        int decimals = currency.getDecimalPlaces();
+        return decimals >= 0 && decimals < POWERS_OF_TEN.length ? POWERS_OF_TEN[decimals]
+                : (long) Math.pow(10.0, decimals);
+    }
+
+    long getCashUnits() {
+        return cashUnits;
+    }
+
+    long unitsPerShare(CurrencyType security) {
+        return unitsByName.computeIfAbsent(security.getName(), name -> unitsOf(security));
+    }
+
+    // The first security of a name wins, as for the table's rows.
+    void setBalance(String securityName, long units) {
+        balancesByName.putIfAbsent(securityName, units);
+    }
+
+    // Null for a security the account does not hold (e.g. a pseudo security).
+    Long getBalance(String securityName) {
+        return balancesByName.get(securityName);
+    }
+
+    long unitsPerShare(String securityName) {
+        Long units = unitsByName.get(securityName);
+        if (units == null) {
+            CurrencyType security = currencies == null ? null : currencies.getCurrencyByName(securityName);
+            units = security == null ? 1L : unitsOf(security);
+            unitsByName.put(securityName, units);
+        }
+        return units;
+    }
+}
@@ -33,36 +33,31 @@ package com.moneydance.modules.features.rebalance;
 
 import javax.swing.*;
 import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
 import javax.swing.table.*;
 import java.awt.*;
-import java.util.Vector;
 
 
 class FooterTable extends FooterTableBase {
     private final FooterTableBase footerTable;
     private final Color lightLightGray = new Color(0xDCDCDC);
     private final int cellPadding = 20; // Extra space so cells aren't so tight
+    private final ColumnWidths columnWidths = new ColumnWidths(cellPadding);
+    // Fit the columns to changed cells of the current model; removed from a model that is replaced
+    private final TableModelListener bodyWidthListener = e -> fitChange(this, e);
+    private final TableModelListener footerWidthListener;
 
     FooterTable(FooterTableModel tableModel) {
         super(tableModel);
 
         fixColumnRenderer();
-        setAutoCreateRowSorter(true);
+        setRowSorter(new ColumnSorter(tableModel));
         getRowSorter().toggleSortOrder(0); // Default: sort by symbol
 
-        // Create footer table (not editable by user since values are function of account positions).
-        // Could make cash target settable. Would require changes to algorithm since the rebalancing
-        // could be overconstrained.
-        footerTable = new FooterTableBase(new FooterTableModel(tableModel.getFooterVector(),
-            new Vector<>(),
-            tableModel.getColumnNames(),
-            tableModel.getColumnTypes(),
-            tableModel.getCurrency()) {
-                @Override
-                public boolean isCellEditable(int rowIndex, int columnIndex) {
-                    return false;
-                }
-            });
+        // Create footer table (not editable by user since values are function of account positions, except
+        // where the model allows, i.e., the cash target with a method that honors it).
+        footerTable = new FooterTableBase(tableModel.getFooterModel());
+        footerWidthListener = e -> fitChange(footerTable, e);
 
         // Link body and footer columns
         // http://stackoverflow.com/questions/2666758/issue-with-resizing-columns-in-a-double-jtable
@@ -73,6 +68,8 @@ class FooterTable extends FooterTableBase {
         footerTable.setCellSelectionEnabled(false);
 
         adjustColumnPreferredWidths();
+        tableModel.addTableModelListener(bodyWidthListener);
+        tableModel.getFooterModel().addTableModelListener(footerWidthListener);
     }
 
     // Changing the table's data model changes its headers, which erases their renderers. Replace them.
@@ -86,26 +83,21 @@ class FooterTable extends FooterTableBase {
 
     // Set the preferred widths for a column large enough to contain cells from the header, data, and footer.
     private void adjustColumnPreferredWidths() {
-        for (int col = 0; col < getColumnCount(); col++) {
-            TableColumnModel columnModel = getColumnModel();
-            TableColumn column = columnModel.getColumn(col);
-            int maxWidth = column.getPreferredWidth();
-            maxWidth = Math.max(maxWidth, findColumnPreferredWidth(this, col));
-            maxWidth = Math.max(maxWidth, findColumnPreferredWidth(footerTable, col));
-            maxWidth = Math.max(maxWidth, findHeaderPreferredWidth(col));
-            column.setPreferredWidth(maxWidth);
+        try (Timing.Span ignored = Metrics.COLUMN_WIDTHS.begin()) {
+            for (int col = 0; col < getColumnCount(); col++) {
+                TableColumn column = getColumnModel().getColumn(col);
+                column.setPreferredWidth(Math.max(column.getPreferredWidth(), findHeaderPreferredWidth(col)));
+            }
+            columnWidths.fitTable(this);
+            columnWidths.fitTable(footerTable);
         }
     }
 
-    private int findColumnPreferredWidth(JTable table, int col) {
-        int maxWidth = 0;
-        for (int row = 0; row < table.getRowCount(); row++) {
-            TableCellRenderer rend = table.getCellRenderer(row, col);
-            Object value = table.getValueAt(row, col);
-            Component comp = rend.getTableCellRendererComponent(table, value, false, false, row, col);
-            maxWidth = Math.max(maxWidth, comp.getPreferredSize().width + cellPadding);
+    // Keep the columns wide enough for the cells as they change, measuring only the changed ones.
+    private void fitChange(FooterTableBase table, TableModelEvent e) {
+        try (Timing.Span ignored = Metrics.COLUMN_WIDTHS.begin()) {
+            columnWidths.fitChange(table, e);
         }
-        return maxWidth;
     }
 
     private int findHeaderPreferredWidth(int col) {
@@ -129,12 +121,8 @@ class FooterTable extends FooterTableBase {
         return c;
     }
 
-    Vector<Vector<Object>> getDataVector() {
-        return getDataModel().getDataVector();
-    }
-
-    Vector<Vector<Object>> getFooterDataVector() {
-        return footerTable.getDataModel().getDataVector();
+    FooterTableModel getFooterModel() {
+        return footerTable.getDataModel();
     }
 
     JTable getFooterTable() {
@@ -142,15 +130,29 @@ class FooterTable extends FooterTableBase {
     }
 
     void dataChanged() {
-        getDataModel().newDataAvailable(new TableModelEvent(getDataModel()));
-        footerTable.getDataModel().newDataAvailable(new TableModelEvent(footerTable.getDataModel()));
+        clearFormattedValues();
+        footerTable.clearFormattedValues();
+        getDataModel().fireTableDataChanged();
+        footerTable.getDataModel().fireTableDataChanged();
     }
 
+    // The new model gets its own sorter, which keeps the order the user chose.
     public void setModel(FooterTableModel model) {
+        FooterTableModel oldModel = getDataModel();
+        oldModel.removeTableModelListener(bodyWidthListener);
+        oldModel.getFooterModel().removeTableModelListener(footerWidthListener);
+        oldModel.getFooterModel().removeTableModelListener(this);
+
+        java.util.List<? extends RowSorter.SortKey> sortKeys = getRowSorter().getSortKeys();
+        setRowSorter(null);
         super.setModel(model);
-        footerTable.setModel(new FooterTableModel(model.getFooterVector(), new Vector<>(),
-                model.getColumnNames(), model.getColumnTypes(), model.getCurrency()));
+        setRowSorter(new ColumnSorter(model));
+        getRowSorter().setSortKeys(sortKeys);
+        footerTable.setModel(model.getFooterModel());
+        model.getFooterModel().addTableModelListener(this);
         adjustColumnPreferredWidths();
+        model.addTableModelListener(bodyWidthListener);
+        model.getFooterModel().addTableModelListener(footerWidthListener);
     }
 
     private class HeaderRenderer extends DefaultTableCellRenderer {
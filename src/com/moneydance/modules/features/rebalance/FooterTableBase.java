@@ -40,6 +40,8 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.table.*;
 import java.awt.*;
 import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.Map;
 
 
 // Base functionality for paired tables.
@@ -55,11 +57,19 @@ class FooterTableBase extends JTable {
         return (FooterTableModel) dataModel;
     }
 
+    // Painting runs the cell renderers, so this is where their time shows up.
+    @Override
+    protected void paintComponent(Graphics g) {
+        try (Timing.Span ignored = Metrics.TABLE_PAINT.begin()) {
+            super.paintComponent(g);
+        }
+    }
+
     // Draw a line above the footer to visually separate it.
     @Override
     public Component prepareRenderer(TableCellRenderer renderer, int row, int column) {
         Component c = super.prepareRenderer(renderer, row, column);
-        if (row == 0 && getDataModel().getFooterVector().isEmpty()) {
+        if (row == 0 && getDataModel().isFooter()) {
             JComponent jc = (JComponent) c;
             jc.setBorder(BorderFactory.createMatteBorder(1, 0, 0, 0, Color.BLACK));
         }
@@ -77,10 +87,32 @@ class FooterTableBase extends JTable {
         repaint();
     }
 
+    // One renderer per column type, created on first use. Renderers depend on the model's currency, so they are
+    // discarded when the model changes.
+    private Map<String, DefaultTableCellRenderer> renderers;
+
+    @Override
+    public void setModel(TableModel dataModel) {
+        super.setModel(dataModel);
+        renderers = null;
+    }
+
     @Override
     public TableCellRenderer getCellRenderer(int row, int column) {
-        DefaultTableCellRenderer renderer;
+        if (renderers == null) {
+            renderers = new HashMap<>();
+        }
         String columnType = getDataModel().getColumnTypes().get(column);
+        DefaultTableCellRenderer renderer = renderers.get(columnType);
+        if (renderer == null) {
+            renderer = createCellRenderer(columnType);
+            renderers.put(columnType, renderer);
+        }
+        return renderer;
+    }
+
+    private DefaultTableCellRenderer createCellRenderer(String columnType) {
+        DefaultTableCellRenderer renderer;
         switch (columnType) {
             case "Text":
                 renderer = new DefaultTableCellRenderer();
@@ -103,52 +135,92 @@ class FooterTableBase extends JTable {
                 renderer.setHorizontalAlignment(JLabel.RIGHT);
                 break;
 
+            case "Shares":
+                renderer = new SharesRenderer();
+                renderer.setHorizontalAlignment(JLabel.RIGHT);
+                break;
+
             default:
                 renderer = new DefaultTableCellRenderer();
         }
         return renderer;
     }
 
+    // Forget formatted cell values (e.g. because the data or exchange rates changed).
+    void clearFormattedValues() {
+        if (renderers != null) {
+            for (DefaultTableCellRenderer renderer : renderers.values()) {
+                if (renderer instanceof NumberCellRenderer) {
+                    ((NumberCellRenderer) renderer).clearFormattedValues();
+                }
+            }
+        }
+    }
+
     // Base class for rendering a table cell containing a number of some type. NaN or null produces a blank cell.
-    // Negative values are red.
-    private class NumberCellRenderer extends DefaultTableCellRenderer {
-        Double doubleValue;
-        final String defaultValue = "?";
+    // Negative values are red. Formatted text is cached by cell value, since formatting is much slower than lookup.
+    private abstract class NumberCellRenderer extends DefaultTableCellRenderer {
+        private static final int MAX_FORMATTED_VALUES = 4096;
+        private final Map<Object, FormattedValue> formattedValues = new HashMap<>();
 
-        boolean isCloseToZero(Double value) {
+        boolean isCloseToZero(double value) {
             return Math.abs(value) < 0.01;
         }
 
+        abstract String format(double value);
+
+        void clearFormattedValues() {
+            formattedValues.clear();
+        }
+
         @Override
         public void setValue(Object value) {
+            FormattedValue formatted = formattedValues.get(value);
+            if (formatted == null) {
+                formatted = formatValue(value);
+                if (formattedValues.size() >= MAX_FORMATTED_VALUES) {
+                    formattedValues.clear();
+                }
+                formattedValues.put(value, formatted);
+            }
+            setText(formatted.text);
+            if (formatted.color != null) {
+                setForeground(formatted.color);
+            }
+        }
+
+        private FormattedValue formatValue(Object value) {
             try {
-                setText(defaultValue);
                 if (value == null) {
-                    setText("");
-                    return;
+                    return new FormattedValue("", null);
                 }
                 if (value instanceof String) {
                     value = Double.valueOf((String) value);
                 }
-                doubleValue = (Double) value;
+                double doubleValue = (Double) value;
                 if (Double.isNaN(doubleValue)) {
-                    setText("");
-                } else {
-                    if (isCloseToZero(doubleValue)) {
-                        doubleValue = 0.0;
-                    }
-                    if (doubleValue < 0.0) {
-                        setForeground(Color.RED);
-                    } else {
-                        setForeground(Color.BLACK);
-                    }
+                    return new FormattedValue("", null);
+                }
+                if (isCloseToZero(doubleValue)) {
+                    doubleValue = 0.0;
                 }
+                return new FormattedValue(format(doubleValue), doubleValue < 0.0 ? Color.RED : Color.BLACK);
             } catch (Exception e) {
-                setText("exp");
+                return new FormattedValue("exp", null);
             }
         }
     }
 
+    private static class FormattedValue {
+        final String text;
+        final Color color;    // null: leave the foreground alone
+
+        FormattedValue(String text, Color color) {
+            this.text = text;
+            this.color = color;
+        }
+    }
+
     // Render a currency with given number of fractional digits.
     private class CurrencyRenderer extends NumberCellRenderer {
         private final boolean noDecimals;
@@ -167,28 +239,15 @@ class FooterTableBase extends JTable {
         }
 
         @Override
-        boolean isCloseToZero(Double value) {
-            return Math.abs(value) < 0.01;
-        }
-
-        @Override
-        public void setValue(Object value) {
-            try {
-                super.setValue(value);
-                if (getText().equals(defaultValue)) {
-                    if (noDecimals) {
-                        // MD format functions can't print comma-separated values without a decimal point so
-                        // we have to do it ourselves
-                        double scaledValue = doubleValue * relativeTo.getUserRate();
-                        setText(relativeTo.getPrefix() + " " + noDecimalFormatter.format(scaledValue)
-                                + relativeTo.getSuffix());
-                    } else {
-                        long scaledValue = relativeTo.convertValue(relativeTo.getLongValue(doubleValue));
-                        setText(relativeTo.formatFancy(scaledValue, decimalSeparator));
-                    }
-                }
-            } catch (Exception e) {
-                setText("exp");
+        String format(double value) {
+            if (noDecimals) {
+                // MD format functions can't print comma-separated values without a decimal point so
+                // we have to do it ourselves
+                double scaledValue = value * relativeTo.getUserRate();
+                return relativeTo.getPrefix() + " " + noDecimalFormatter.format(scaledValue) + relativeTo.getSuffix();
+            } else {
+                long scaledValue = relativeTo.convertValue(relativeTo.getLongValue(value));
+                return relativeTo.formatFancy(scaledValue, decimalSeparator);
             }
         }
     }
@@ -201,20 +260,13 @@ class FooterTableBase extends JTable {
         }
 
         @Override
-        boolean isCloseToZero(Double value) {
+        boolean isCloseToZero(double value) {
             return Math.abs(value) < 0.0001;
         }
 
         @Override
-        public void setValue(Object value) {
-            try {
-                super.setValue(value);
-                if (getText().equals(defaultValue)) {
-                    setText(StringUtils.formatPercentage(doubleValue, decimalSeparator) + "%");
-                }
-            } catch (Exception e) {
-                setText("exp");
-            }
+        String format(double value) {
+            return StringUtils.formatPercentage(value, decimalSeparator) + "%";
         }
     }
 
@@ -224,15 +276,30 @@ class FooterTableBase extends JTable {
         }
 
         @Override
-        public void setValue(Object value) {
-            try {
-                super.setValue(value);
-                if (getText().equals(defaultValue)) {
-                    setText(Long.toString(Math.round(doubleValue)));
-                }
-            } catch (Exception e) {
-                setText("exp");
-            }
+        String format(double value) {
+            return Long.toString(Math.round(value));
+        }
+    }
+
+    // Render a number of shares: whole shares as an integer, fractional shares with up to 6 decimal places.
+    private class SharesRenderer extends NumberCellRenderer {
+        private final NumberFormat formatter;
+
+        SharesRenderer() {
+            formatter = NumberFormat.getNumberInstance();
+            formatter.setGroupingUsed(false);
+            formatter.setMinimumFractionDigits(0);
+            formatter.setMaximumFractionDigits(6);
+        }
+
+        @Override
+        boolean isCloseToZero(double value) {
+            return Math.abs(value) < 0.000001;
+        }
+
+        @Override
+        String format(double value) {
+            return formatter.format(value);
         }
     }
 
@@ -33,25 +33,67 @@ package com.moneydance.modules.features.rebalance;
 
 import com.infinitekind.moneydance.model.CurrencyType;
 
-import javax.swing.table.DefaultTableModel;
+import javax.swing.table.AbstractTableModel;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
+import java.util.function.IntPredicate;
 
 
-class FooterTableModel extends DefaultTableModel {
+// Table model that keeps each column in a primitive array: Text columns as a String[], the others as a double[]
+// in which NaN is an empty cell. A cell is boxed only when the table asks for its value (e.g. to render it), and
+// ColumnSorter sorts by comparing the arrays directly. Rows arrive as vectors, as the loaders build them, and are
+// copied into the columns. The footer rows are a second model with the same columns.
+class FooterTableModel extends AbstractTableModel {
+    private static final int MIN_CAPACITY = 8;
+
+    private final Vector<String> columnNames;
     private final Vector<String> columnTypes;
     private final CurrencyType currency;
-    private final Vector<Vector<Object>> footer;
+    private final Object[] columns;     // String[] or double[], by column type
+    private int rowCount;
+    private int capacity;               // Length of the arrays
+    private final FooterTableModel footerModel;     // null in the footer itself
+
+    // Index of the rows by their Name and Symbol columns, in model coordinates, so sorting the view does not
+    // affect it. Appending a row updates it; other structural changes discard it, and the next lookup rebuilds it.
+    private Map<String, Integer> rowsByName;
+    private Map<String, Integer> rowsBySymbol;
 
     FooterTableModel(Vector<Vector<Object>> data, Vector<Vector<Object>> footer, Vector<String> columnNames,
                      Vector<String> columnTypes, CurrencyType currency) {
-        super(data, columnNames);
+        this(data, columnNames, columnTypes, currency, footer);
+    }
+
+    private FooterTableModel(Vector<Vector<Object>> data, Vector<String> columnNames, Vector<String> columnTypes,
+                             CurrencyType currency, Vector<Vector<Object>> footer) {
+        this.columnNames = columnNames;
         this.columnTypes = columnTypes;
         this.currency = currency;
-        this.footer = footer;
+        columns = new Object[columnNames.size()];
+        for (int col = 0; col < columns.length; col++) {
+            columns[col] = isText(col) ? new String[0] : new double[0];
+        }
+        ensureCapacity(data.size());
+        for (Vector<Object> entry : data) {
+            appendRow(entry);
+        }
+
+        // The footer's cells are editable where the body's isFooterCellEditable allows.
+        FooterTableModel body = this;
+        footerModel = footer == null ? null : new FooterTableModel(footer, columnNames, columnTypes, currency, null) {
+            @Override
+            public boolean isCellEditable(int rowIndex, int columnIndex) {
+                return body.isFooterCellEditable(rowIndex, columnIndex);
+            }
+        };
     }
 
     Vector<String> getColumnNames() {
-        return columnIdentifiers;
+        return columnNames;
     }
 
     Vector<String> getColumnTypes() {
@@ -62,18 +104,224 @@ class FooterTableModel extends DefaultTableModel {
         return currency;
     }
 
-    Vector<Vector<Object>> getFooterVector() {
-        return footer;
+    // Model for the footer rows, or null if this is the footer.
+    FooterTableModel getFooterModel() {
+        return footerModel;
     }
 
+    boolean isFooter() {
+        return footerModel == null;
+    }
+
+    boolean isFooterCellEditable(int row, int column) {
+        return false;
+    }
+
+    private boolean isText(int col) {
+        return columnTypes.get(col).equals("Text");
+    }
+
+
+    // Cells:
+    //
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    @Override
+    public String getColumnName(int col) {
+        return columnNames.get(col);
+    }
+
+    @Override
+    public Class<?> getColumnClass(int col) {
+        return isText(col) ? String.class : Double.class;
+    }
+
+    // An empty numeric cell is null, as the renderers expect.
+    @Override
+    public Object getValueAt(int row, int col) {
+        if (columns[col] instanceof String[]) {
+            return ((String[]) columns[col])[row];
+        }
+        double value = ((double[]) columns[col])[row];
+        return Double.isNaN(value) ? null : value;
+    }
+
+    // Values from the cell editors are strings.
     @Override
     public void setValueAt(Object value, int row, int col) {
-        if (columnTypes.get(col).equals("String")) {
-            ((Vector<Object>) dataVector.get(row)).set(col, value);
+        if (isText(col)) {
+            setString(row, col, (String) value);
+        } else if (value instanceof String) {
+            setDouble(row, col, Double.parseDouble((String) value));
         } else {
-            ((Vector<Object>) dataVector.get(row)).set(col, Double.parseDouble((String) value));
+            setDouble(row, col, value == null ? Double.NaN : (Double) value);
         }
         fireTableCellUpdated(row, col);
     }
-}
 
+    String getString(int row, int col) {
+        return ((String[]) columns[col])[row];
+    }
+
+    // The following setters do not notify listeners; the caller does that once a batch of changes is complete.
+    void setString(int row, int col, String value) {
+        ((String[]) columns[col])[row] = value;
+        if (col == columnNames.indexOf("Name") || col == columnNames.indexOf("Symbol")) {
+            invalidateIndex();
+        }
+    }
+
+    // NaN for an empty cell.
+    double getDouble(int row, int col) {
+        return ((double[]) columns[col])[row];
+    }
+
+    void setDouble(int row, int col, double value) {
+        ((double[]) columns[col])[row] = value;
+    }
+
+    // A boxed copy of a row, in the form the loaders produce, for code that works on rows off the Swing thread.
+    Vector<Object> getRow(int row) {
+        Vector<Object> entry = new Vector<>(columns.length);
+        for (int col = 0; col < columns.length; col++) {
+            entry.add(getValueAt(row, col));
+        }
+        return entry;
+    }
+
+
+    // Rows:
+    //
+    // Add a row (in the form the loaders produce) without notifying listeners.
+    void appendRow(Vector<Object> entry) {
+        ensureCapacity(rowCount + 1);
+        for (int col = 0; col < columns.length; col++) {
+            Object value = entry.get(col);
+            if (columns[col] instanceof String[]) {
+                ((String[]) columns[col])[rowCount] = (String) value;
+            } else {
+                ((double[]) columns[col])[rowCount] = value == null ? Double.NaN : (Double) value;
+            }
+        }
+        rowCount += 1;
+        if (rowsByName != null) {
+            indexRow(rowCount - 1, columnNames.indexOf("Name"), columnNames.indexOf("Symbol"));
+        }
+    }
+
+    // Remove the model rows the filter accepts, without notifying listeners, as with appendRow.
+    void removeRowsIf(IntPredicate filter) {
+        int size = 0;
+        for (int row = 0; row < rowCount; row++) {
+            if (!filter.test(row)) {
+                if (size != row) {
+                    for (Object column : columns) {
+                        System.arraycopy(column, row, column, size, 1);
+                    }
+                }
+                size += 1;
+            }
+        }
+        if (size != rowCount) {
+            for (Object column : columns) {
+                if (column instanceof String[]) {
+                    Arrays.fill((String[]) column, size, rowCount, null);   // Let the names go
+                }
+            }
+            rowCount = size;
+            invalidateIndex();
+        }
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity > capacity) {
+            capacity = Math.max(MIN_CAPACITY, Math.max(minCapacity, capacity + capacity / 2));
+            for (int col = 0; col < columns.length; col++) {
+                if (columns[col] instanceof String[]) {
+                    columns[col] = Arrays.copyOf((String[]) columns[col], capacity);
+                } else {
+                    columns[col] = Arrays.copyOf((double[]) columns[col], capacity);
+                }
+            }
+        }
+    }
+
+    // Order of two model rows by a column: text by the locale's collation, numbers numerically, and empty cells
+    // before all others (as DefaultRowSorter orders nulls). The column's array is looked up on each comparison,
+    // since appending rows may replace it.
+    Comparator<Integer> getRowComparator(int col) {
+        if (isText(col)) {
+            Collator collator = Collator.getInstance();
+            return (row1, row2) -> {
+                String value1 = getString(row1, col);
+                String value2 = getString(row2, col);
+                if (value1 == null || value2 == null) {
+                    return Boolean.compare(value1 != null, value2 != null);
+                }
+                return collator.compare(value1, value2);
+            };
+        }
+        return (row1, row2) -> {
+            double value1 = getDouble(row1, col);
+            double value2 = getDouble(row2, col);
+            if (Double.isNaN(value1) || Double.isNaN(value2)) {
+                return Boolean.compare(!Double.isNaN(value1), !Double.isNaN(value2));
+            }
+            return Double.compare(value1, value2);
+        };
+    }
+
+
+    // Security lookups:
+    //
+    // Model row of the security with this name, or -1.
+    int findRow(String name) {
+        buildIndex();
+        Integer row = rowsByName.get(name);
+        return row == null ? -1 : row;
+    }
+
+    // Model row of a security, found by name or else by ticker symbol, or -1.
+    int findRow(CurrencyType security) {
+        buildIndex();
+        Integer row = rowsByName.get(security.getName());
+        if (row == null && security.getTickerSymbol() != null) {
+            row = rowsBySymbol.get(security.getTickerSymbol());
+        }
+        return row == null ? -1 : row;
+    }
+
+    private void buildIndex() {
+        if (rowsByName == null) {
+            int nameCol = columnNames.indexOf("Name");
+            int symbolCol = columnNames.indexOf("Symbol");
+            rowsByName = new HashMap<>(rowCount * 2);
+            rowsBySymbol = new HashMap<>(rowCount * 2);
+            for (int row = 0; row < rowCount; row++) {
+                indexRow(row, nameCol, symbolCol);
+            }
+        }
+    }
+
+    private void indexRow(int row, int nameCol, int symbolCol) {
+        if (nameCol >= 0 && getString(row, nameCol) != null) {
+            rowsByName.putIfAbsent(getString(row, nameCol), row);
+        }
+        if (symbolCol >= 0 && getString(row, symbolCol) != null) {
+            rowsBySymbol.putIfAbsent(getString(row, symbolCol), row);
+        }
+    }
+
+    private void invalidateIndex() {
+        rowsByName = null;
+        rowsBySymbol = null;
+    }
+}
@@ -0,0 +1,209 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import com.infinitekind.moneydance.model.AccountBook;
+import com.moneydance.apps.md.controller.UserPreferences;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+
+// The commands Main.invoke runs without a window, for scripts:
+//
+//   rebalance:plan?account=<name>&out=<file>     Write the plan of one account
+//   rebalance:all?out=<file>                     Write the plans of all investment accounts
+//
+// An account is named as the window lists it: by name, or by full path (e.g. Retirement:Brokerage) if several
+// investment accounts share the name.
+//
+// Both also take format=csv or json (by default, JSON if the file name ends in .json), and percent=<percent>,
+// value=<amount>, and method=<GREEDY, OPTIMAL, EXACT, or EXACT_FRACTIONAL>, which default to the settings last
+// saved by the window; percent=off or value=off switches a threshold off. The plan is written to a temporary file
+// that is then renamed, so the output file appears only once it is complete.
+final class HeadlessCommand {
+    private final AccountBook book;
+    private final UserPreferences up;
+    private final AccountCache accountCache;
+    private final AccountLoader accountLoader;
+    private AccountCatalog accountCatalog;
+
+    HeadlessCommand(AccountBook book, TargetStore targetStore, UserPreferences up) {
+        this.book = book;
+        this.up = up;
+        accountCache = new AccountCache(book);
+        accountLoader = new AccountLoader(book, targetStore, accountCache);
+    }
+
+    void close() {
+        accountCache.close();
+        if (accountCatalog != null) {
+            accountCatalog.close();
+        }
+    }
+
+    AccountBook getBook() {
+        return book;
+    }
+
+    static boolean isCommand(String command) {
+        return command.equals("rebalance:plan") || command.equals("rebalance:all");
+    }
+
+    void run(String command, Map<String, String> parameters) throws IOException, InterruptedException {
+        if (command.equals("rebalance:plan")) {
+            plan(parameters);
+        } else {
+            all(parameters);
+        }
+    }
+
+    private void plan(Map<String, String> parameters) throws IOException {
+        String accountName = parameters.get("account");
+        String accountId = accountName == null ? null : getAccountCatalog().findAccount(accountName);
+        if (accountId == null) {
+            throw new IllegalArgumentException("No account " + accountName + " (or several; give its full path)");
+        }
+        AccountSnapshot snapshot = accountLoader.load(accountId, policy(parameters));
+        export(parameters, exporter -> exporter.write(accountCatalog.getLabel(accountId), snapshot.data));
+    }
+
+    private void all(Map<String, String> parameters) throws IOException, InterruptedException {
+        RebalancePolicy policy = policy(parameters);
+        export(parameters, exporter -> {
+            try {
+                new BatchRebalancer(accountLoader).rebalanceAll(getAccountCatalog().getAccountIds(), policy,
+                        snapshot -> {
+                            try {
+                                exporter.write(accountCatalog.getLabel(snapshot.accountId), snapshot.data);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    private AccountCatalog getAccountCatalog() {
+        if (accountCatalog == null) {
+            accountCatalog = new AccountCatalog(book, () -> {
+            });
+        }
+        return accountCatalog;
+    }
+
+    private interface Export {
+        void writeTo(PlanExporter exporter) throws IOException, InterruptedException;
+    }
+
+    private void export(Map<String, String> parameters, Export export) throws IOException {
+        String out = parameters.get("out");
+        if (out == null) {
+            throw new IllegalArgumentException("No out file");
+        }
+        String format = parameters.get("format");
+        PlanExporter.Format exportFormat = format == null ? PlanExporter.Format.forFile(out)
+                : PlanExporter.Format.valueOf(format.toUpperCase());
+
+        Path file = Paths.get(out).toAbsolutePath();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8);
+             PlanExporter exporter = new PlanExporter(writer, exportFormat)) {
+            export.writeTo(exporter);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Files.deleteIfExists(temporary);
+            return;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        try {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private RebalancePolicy policy(Map<String, String> parameters) {
+        RebalancePolicy saved = RebalancePolicy.fromPreferences(up);
+        String percent = parameters.get("percent");
+        String value = parameters.get("value");
+        String method = parameters.get("method");
+        return new RebalancePolicy(
+                percent == null ? saved.percentLimit : limit(percent, 0.01),
+                value == null ? saved.valueLimit : limit(value, 1.0),
+                method == null ? saved.method : RebalanceEngine.Method.valueOf(method.toUpperCase()));
+    }
+
+    private static double limit(String text, double scale) {
+        return text.equalsIgnoreCase("off") ? Double.MAX_VALUE : Double.parseDouble(text) * scale;
+    }
+
+    // The parameters of a URI's query (after the '?'), decoded. A parameter without '=' has the value "".
+    static Map<String, String> parseQuery(String query) {
+        if (query == null || query.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> parameters = new HashMap<>();
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            String name = equals < 0 ? parameter : parameter.substring(0, equals);
+            String value = equals < 0 ? "" : parameter.substring(equals + 1);
+            parameters.put(decode(name), decode(value));
+        }
+        return parameters;
+    }
+
+    private static String decode(String text) {
+        try {
+            return URLDecoder.decode(text, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
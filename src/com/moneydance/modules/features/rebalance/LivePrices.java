@@ -0,0 +1,101 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import com.infinitekind.moneydance.model.CurrencyListener;
+import com.infinitekind.moneydance.model.CurrencyTable;
+import com.infinitekind.moneydance.model.CurrencyType;
+
+import javax.swing.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+// Follows Moneydance price changes for a window. A quote download reports each new price as a separate change to
+// the currency table, so a burst of changes is coalesced: the first one starts a timer, and when it fires (on the
+// Swing thread, one frame later) the window updates once for all of them.
+class LivePrices implements CurrencyListener {
+    static final int FRAME_MS = 16;
+
+    private final CurrencyTable currencies;
+    private final Timer timer;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private volatile boolean started;
+
+    LivePrices(CurrencyTable currencies, Runnable update) {
+        this.currencies = currencies;
+        timer = new Timer(FRAME_MS, e -> {
+            pending.set(false);
+            if (started) {
+                update.run();
+            }
+        });
+        timer.setRepeats(false);
+    }
+
+    void start() {
+        if (!started) {
+            started = true;
+            currencies.addCurrencyListener(this);
+        }
+    }
+
+    void stop() {
+        if (started) {
+            started = false;
+            currencies.removeCurrencyListener(this);
+            timer.stop();
+            pending.set(false);
+        }
+    }
+
+    // Current price of each security, by name, read in one pass over the currency table.
+    Map<String, Double> pricesByName() {
+        Map<String, Double> prices = new HashMap<>();
+        for (CurrencyType ct : currencies) {
+            if (ct.getCurrencyType() == CurrencyType.Type.SECURITY) {
+                prices.put(ct.getName(), 1.0 / ct.getUserRate());
+            }
+        }
+        return prices;
+    }
+
+    // May be called on any thread.
+    @Override
+    public void currencyTableModified(CurrencyTable table) {
+        if (pending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(timer::restart);
+        }
+    }
+}
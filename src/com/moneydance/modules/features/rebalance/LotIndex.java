@@ -0,0 +1,242 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import com.infinitekind.moneydance.model.AbstractTxn;
+import com.infinitekind.moneydance.model.Account;
+import com.infinitekind.moneydance.model.AccountBook;
+import com.infinitekind.moneydance.model.CurrencySplit;
+import com.infinitekind.moneydance.model.TransactionListener;
+import com.infinitekind.moneydance.model.TransactionSet;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+// Open tax lots of security accounts, built from each account's transactions and its security's split records
+// the first time its lots are requested. Shares coming into the account open a lot at the transaction's cost
+// (zero for, e.g., a gift or a transfer without basis). Shares going out close the lots Moneydance matched the
+// sale to, if it recorded a matching, and otherwise (or for shares left unmatched) lots first in, first out. A
+// split scales every lot open on its date by the split's ratio, and the lot's cost per share by the inverse, so
+// the lot keeps its date and basis. A new transaction dated on or after the last transaction or split applied is
+// applied to the lots directly. A back-dated, modified, or removed transaction, or a new split record, discards
+// the account's lots, which are rebuilt on the next request.
+class LotIndex implements TransactionListener {
+    private final TransactionSet transactions;
+    private final Map<String, SecurityLots> lotsByAccount = new HashMap<>();   // By account ID
+
+    LotIndex(AccountBook book) {
+        transactions = book.getTransactionSet();
+        transactions.addTransactionListener(this);
+    }
+
+    void close() {
+        transactions.removeTransactionListener(this);
+    }
+
+    // Copies of the security account's open lots, oldest first.
+    synchronized List<TaxLot> getLots(Account security) {
+        List<CurrencySplit> splits = security.getCurrencyType().getSplits();
+        SecurityLots lots = lotsByAccount.get(security.getUUID());
+        if (lots == null || lots.splitCount != splits.size()) {
+            lots = build(security, splits);
+            lotsByAccount.put(security.getUUID(), lots);
+        }
+        List<TaxLot> copies = new ArrayList<>(lots.open.size());
+        for (TaxLot lot : lots.open.values()) {
+            copies.add(lot.copy());
+        }
+        return copies;
+    }
+
+    private SecurityLots build(Account security, List<CurrencySplit> splits) {
+        List<AbstractTxn> txns = new ArrayList<>();
+        for (AbstractTxn txn : transactions.getTransactionsForAccount(security)) {
+            txns.add(txn);
+        }
+        // Within a day, shares in before shares out
+        txns.sort((a, b) -> a.getDateInt() != b.getDateInt() ? Integer.compare(a.getDateInt(), b.getDateInt())
+                : Long.compare(b.getValue(), a.getValue()));
+
+        SecurityLots lots = new SecurityLots(Math.pow(10.0, security.getCurrencyType().getDecimalPlaces()),
+                Math.pow(10.0, security.getParentAccount().getCurrencyType().getDecimalPlaces()), splits);
+        for (AbstractTxn txn : txns) {
+            lots.apply(txn);
+        }
+        lots.applySplitsThrough(Integer.MAX_VALUE);
+        return lots;
+    }
+
+    // Visit txn and its other halves (a parent's splits, or a split's parent) that are in accounts with lots.
+    private void forEachIndexed(AbstractTxn txn, Visitor visitor) {
+        visit(txn, visitor);
+        for (int i = 0; i < txn.getOtherTxnCount(); i++) {
+            visit(txn.getOtherTxn(i), visitor);
+        }
+    }
+
+    private void visit(AbstractTxn txn, Visitor visitor) {
+        Account account = txn == null ? null : txn.getAccount();
+        SecurityLots lots = account == null ? null : lotsByAccount.get(account.getUUID());
+        if (lots != null) {
+            visitor.visit(account.getUUID(), lots, txn);
+        }
+    }
+
+    private interface Visitor {
+        void visit(String accountId, SecurityLots lots, AbstractTxn txn);
+    }
+
+
+    // TransactionListener:
+    //
+    @Override
+    public synchronized void transactionAdded(AbstractTxn txn) {
+        forEachIndexed(txn, (accountId, lots, split) -> {
+            if (split.getDateInt() >= lots.lastDate) {
+                lots.apply(split);
+            } else {
+                lotsByAccount.remove(accountId);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void transactionModified(AbstractTxn txn) {
+        forEachIndexed(txn, (accountId, lots, split) -> lotsByAccount.remove(accountId));
+    }
+
+    @Override
+    public synchronized void transactionRemoved(AbstractTxn txn) {
+        forEachIndexed(txn, (accountId, lots, split) -> lotsByAccount.remove(accountId));
+    }
+
+
+    private static final double SHARE_EPSILON = 1e-9;
+    // Moneydance's record, on a sale, of the lots it sold: "<buy transaction ID>:<security units>;..."
+    private static final String COST_BASIS_TAG = "cost_basis";
+
+    private static class SecurityLots {
+        private final double shareScale;        // Security units per share
+        private final double cashScale;         // Cash units per unit of the parent account's currency
+        private final Map<String, TaxLot> open = new LinkedHashMap<>();  // By buying transaction's ID, oldest first
+        private final Set<String> applied = new HashSet<>();   // A transaction may be reported more than once
+        private final List<CurrencySplit> splits;               // By date
+        private final int splitCount;           // Of the security when the lots were built
+        private int nextSplit;
+        private int lastDate;
+
+        SecurityLots(double shareScale, double cashScale, List<CurrencySplit> splits) {
+            this.shareScale = shareScale;
+            this.cashScale = cashScale;
+            this.splits = new ArrayList<>(splits);
+            this.splits.sort(Comparator.comparingInt(CurrencySplit::getDateInt));
+            splitCount = splits.size();
+        }
+
+        void apply(AbstractTxn txn) {
+            if (!applied.add(txn.getUUID())) {
+                return;
+            }
+            applySplitsThrough(txn.getDateInt());   // Shares traded on a split's date are post-split shares
+            lastDate = Math.max(lastDate, txn.getDateInt());
+            double shares = txn.getValue() / shareScale;
+            if (shares > 0.0) {
+                open.put(txn.getUUID(),
+                        new TaxLot(txn.getDateInt(), shares, Math.abs(txn.getAmount()) / cashScale / shares));
+            } else {
+                double remaining = sellMatched(txn.getParameter(COST_BASIS_TAG), -shares);
+                Iterator<TaxLot> lots = open.values().iterator();
+                while (remaining > SHARE_EPSILON && lots.hasNext()) {
+                    TaxLot lot = lots.next();
+                    double sold = Math.min(remaining, lot.shares);
+                    lot.shares -= sold;
+                    remaining -= sold;
+                    if (lot.shares <= SHARE_EPSILON) {
+                        lots.remove();
+                    }
+                }
+            }
+        }
+
+        // Sell from the lots a cost basis tag names, and return the shares left to sell.
+        private double sellMatched(String costBasis, double remaining) {
+            if (costBasis == null || costBasis.isEmpty()) {
+                return remaining;
+            }
+            for (String match : costBasis.split(";")) {
+                int colon = match.lastIndexOf(':');
+                String buyId = colon <= 0 ? "" : match.substring(0, colon).trim();
+                TaxLot lot = open.get(buyId);
+                if (lot == null) {
+                    continue;
+                }
+                double shares;
+                try {
+                    shares = Long.parseLong(match.substring(colon + 1).trim()) / shareScale;
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                double sold = Math.min(Math.min(shares, lot.shares), remaining);
+                lot.shares -= sold;
+                remaining -= sold;
+                if (lot.shares <= SHARE_EPSILON) {
+                    open.remove(buyId);
+                }
+            }
+            return remaining;
+        }
+
+        // Apply the splits dated on or before date that have not been applied yet.
+        void applySplitsThrough(int date) {
+            while (nextSplit < splits.size() && splits.get(nextSplit).getDateInt() <= date) {
+                CurrencySplit split = splits.get(nextSplit++);
+                double ratio = split.getSplitRatio();   // New shares per old share
+                if (ratio > 0.0) {
+                    for (TaxLot lot : open.values()) {
+                        lot.shares *= ratio;
+                        lot.costPerShare /= ratio;
+                    }
+                }
+                lastDate = Math.max(lastDate, split.getDateInt());
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+
+// Order in which a sell draws on a security's lots.
+enum LotPolicy {
+    FIFO("First in, first out"),
+    HIGHEST_COST("Highest cost first"),                 // Smallest gains (or largest losses) first
+    MIN_SHORT_TERM_GAIN("Minimize short-term gains");   // Long-term lots first, each group by highest cost
+
+    private final String label;
+
+    LotPolicy(String label) {
+        this.label = label;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+
+    private Comparator<TaxLot> order(int today) {
+        Comparator<TaxLot> byDate = Comparator.comparingInt(lot -> lot.date);
+        Comparator<TaxLot> byCost = Comparator.<TaxLot>comparingDouble(lot -> lot.costPerShare).reversed()
+                .thenComparing(byDate);
+        switch (this) {
+            case HIGHEST_COST:
+                return byCost;
+            case MIN_SHORT_TERM_GAIN:
+                return Comparator.<TaxLot, Boolean>comparing(lot -> !lot.isLongTerm(today)).thenComparing(byCost);
+            default:
+                return byDate;
+        }
+    }
+
+    // Assign shares to sell at price to the lots, in this policy's order. Shares beyond those in the lots are not
+    // assigned. The lots are not changed.
+    List<LotSale> select(List<TaxLot> lots, double shares, double price, int today) {
+        List<TaxLot> ordered = new ArrayList<>(lots);
+        ordered.sort(order(today));
+        List<LotSale> sales = new ArrayList<>();
+        for (TaxLot lot : ordered) {
+            if (shares <= 0.0) {
+                break;
+            }
+            double sold = Math.min(shares, lot.shares);
+            if (sold > 0.0) {
+                sales.add(new LotSale(lot, sold, sold * (price - lot.costPerShare), lot.isLongTerm(today)));
+                shares -= sold;
+            }
+        }
+        return sales;
+    }
+}
@@ -0,0 +1,125 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import static com.moneydance.modules.features.rebalance.RebalanceRows.*;
+
+
+// The lots that an account's planned sells would draw on, under a chosen lot policy, with the gains they would
+// realize.
+class LotSaleDialog extends JDialog {
+    private static final String[] COLUMNS = {"Name", "Symbol", "Acquired", "Shares", "Cost", "Price", "Gain", "Term"};
+
+    private final List<Vector<Object>> sells;
+    private final Map<Object, List<TaxLot>> lotsByName;
+    private final int today;
+    private final DefaultTableModel model;
+    private final JLabel summary = new JLabel();
+
+    // sells are the account's rows with a Sell; lotsByName holds the open lots of each of their securities.
+    LotSaleDialog(Frame owner, String accountName, List<Vector<Object>> sells, Map<Object, List<TaxLot>> lotsByName) {
+        super(owner, "Lots to Sell in " + accountName, false);
+        this.sells = sells;
+        this.lotsByName = lotsByName;
+        LocalDate date = LocalDate.now();
+        today = date.getYear() * 10000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+
+        model = new DefaultTableModel(new Vector<>(Arrays.asList(COLUMNS)), 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        JTable table = new JTable(model);
+        table.setFillsViewportHeight(true);
+
+        JComboBox<LotPolicy> policyList = new JComboBox<>(LotPolicy.values());
+        policyList.addActionListener(e -> fill((LotPolicy) policyList.getSelectedItem()));
+        JPanel top = new JPanel(new BorderLayout(10, 0));
+        top.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
+        top.add(policyList, BorderLayout.WEST);
+        top.add(summary, BorderLayout.CENTER);
+
+        getContentPane().add(top, BorderLayout.NORTH);
+        getContentPane().add(new JScrollPane(table), BorderLayout.CENTER);
+        JLabel note = new JLabel("Past sales closed the lots Moneydance matched them to, else the oldest lots.");
+        note.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
+        getContentPane().add(note, BorderLayout.SOUTH);
+        fill(LotPolicy.FIFO);
+        setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        pack();
+        setLocationRelativeTo(owner);
+    }
+
+    private void fill(LotPolicy policy) {
+        model.setRowCount(0);
+        double shortTermGain = 0.0;
+        double longTermGain = 0.0;
+        for (Vector<Object> entry : sells) {
+            double price = (Double) entry.get(PRICE_COL);
+            double shares = (Double) entry.get(SELL_COL);
+            List<TaxLot> lots = lotsByName.getOrDefault(entry.get(NAME_COL), Collections.emptyList());
+            for (LotSale sale : policy.select(lots, shares, price, today)) {
+                model.addRow(new Object[]{entry.get(NAME_COL), entry.get(SYMBOL_COL), formatDate(sale.lot.date),
+                        String.format("%.4f", sale.shares), String.format("%.2f", sale.lot.costPerShare),
+                        String.format("%.2f", price), String.format("%.2f", sale.gain),
+                        sale.longTerm ? "Long" : "Short"});
+                if (sale.longTerm) {
+                    longTermGain += sale.gain;
+                } else {
+                    shortTermGain += sale.gain;
+                }
+                shares -= sale.shares;
+            }
+            if (shares > 0.0) {
+                model.addRow(new Object[]{entry.get(NAME_COL), entry.get(SYMBOL_COL), "No lot",
+                        String.format("%.4f", shares), null, String.format("%.2f", price), null, null});
+            }
+        }
+        summary.setText(String.format("Short-term gain %.2f, long-term gain %.2f", shortTermGain, longTermGain));
+    }
+
+    private static String formatDate(int date) {
+        return String.format("%04d-%02d-%02d", date / 10000, date / 100 % 100, date % 100);
+    }
+}
@@ -32,16 +32,33 @@
 
 package com.moneydance.modules.features.rebalance;
 
+import com.infinitekind.moneydance.model.AccountBook;
 import com.moneydance.apps.md.controller.FeatureModule;
 import com.moneydance.apps.md.controller.FeatureModuleContext;
+import com.moneydance.apps.md.controller.UserPreferences;
 
+import javax.swing.*;
 import java.io.*;
 import java.awt.*;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 // Plugable module used to rebalance an Account
 
 public class Main extends FeatureModule {
     private ReBalanceWindow rebalanceWindow;
+    private TargetStore targetStore;
+    private final PreferenceWriter preferenceWriter = new PreferenceWriter();
+    private Image icon;
+    // From the last request to show the window until it first paints. Set and taken without a lock, since the
+    // window reports its paint on the Swing thread while this object's monitor may be held waiting on that thread.
+    private final AtomicReference<Timing.Span> firstPaint = new AtomicReference<>();
+    private final Metrics metrics = new Metrics();
+    private ExecutorService commandThread;      // Runs headless commands one at a time
+    private HeadlessCommand headlessCommand;    // For the current book, once a command has run
 
     @Override
     public void init() {
@@ -53,14 +70,56 @@ public class Main extends FeatureModule {
         } catch (Exception e) {
             e.printStackTrace(System.err);
         }
+        this.metrics.register();
+        this.prewarm();
+    }
+
+    @Override
+    public void handleEvent(String appEvent) {
+        if (appEvent.equals("md:file:closing")) {
+            this.closeRebalanceWindow();    // The window holds on to the old book
+            this.closeHeadlessCommand();
+        }
+    }
+
+    // Build the account-independent state the window needs before the user asks for it: the target store and the
+    // engine's classes on a background thread, then an empty table (never shown) on the Swing thread, which loads
+    // the table, renderer, and sorter classes. The window itself, with its listeners on the book, live prices, and
+    // account load, is built by the first request to show it.
+    private void prewarm() {
+        Thread thread = new Thread(() -> {
+            this.getTargetStore();
+            new RebalanceEngine().rebalance();
+            new AllocationSolver().solve(0.0);
+            SwingUtilities.invokeLater(() -> new FooterTablePane(new FooterTable(new FooterTableModel(new Vector<>(),
+                    new Vector<>(), RebalanceRows.columnNames(), RebalanceRows.columnTypes(), null))));
+        }, "ReBalance prewarm");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     @Override
     public void cleanup() {
         this.closeRebalanceWindow();
+        synchronized (this) {
+            if (this.commandThread != null) {
+                this.commandThread.shutdownNow();
+                this.commandThread = null;
+            }
+        }
+        this.closeHeadlessCommand();
+        this.preferenceWriter.shutdown();
+        this.metrics.unregister();
+    }
+
+    private synchronized Image getIcon(String action) {
+        if (this.icon == null) {
+            this.icon = this.loadIcon();
+        }
+        return this.icon;
     }
 
-    private Image getIcon(String action) {
+    private Image loadIcon() {
         try {
             ClassLoader cl = this.getClass().getClassLoader();
             InputStream in =
@@ -79,47 +138,120 @@ public class Main extends FeatureModule {
         return null;
     }
 
-     // Process an invocation of this module with the given URI
+     // Process an invocation of this module with the given URI: "rebalance" shows the window, and the commands
+     // of HeadlessCommand (e.g. "rebalance:plan?account=...&out=...") run in the background without it.
     @Override
     public void invoke(String uri) {
         String command = uri;
-        //String parameters = "";
+        String parameters = "";
         int theIdx = uri.indexOf('?');
         if (theIdx >= 0) {
             command = uri.substring(0, theIdx);
-            //parameters = uri.substring(theIdx + 1);
-        } else {
-            theIdx = uri.indexOf(':');
-            if (theIdx >= 0) {
-                command = uri.substring(0, theIdx);
-            }
+            parameters = uri.substring(theIdx + 1);
         }
 
+        if (HeadlessCommand.isCommand(command)) {
+            this.runHeadless(command, HeadlessCommand.parseQuery(parameters));
+            return;
+        }
+        theIdx = command.indexOf(':');
+        if (theIdx >= 0) {
+            command = command.substring(0, theIdx);
+        }
         if (command.equals("rebalance")) {
             this.rebalance();
         }
     }
 
+    private synchronized void runHeadless(String command, Map<String, String> parameters) {
+        if (this.commandThread == null) {
+            this.commandThread = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "ReBalance command");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.commandThread.execute(() -> {
+            try {
+                this.getHeadlessCommand().run(command, parameters);
+            } catch (Exception e) {
+                System.err.println("ReBalance: " + command + " failed");
+                e.printStackTrace(System.err);
+            }
+        });
+    }
+
+    // A command keeps its caches for the next one, as long as the same book is open.
+    private synchronized HeadlessCommand getHeadlessCommand() {
+        AccountBook book = this.getContext().getCurrentAccountBook();
+        if (book == null) {
+            throw new IllegalStateException("No file is open");
+        }
+        if (this.headlessCommand == null || this.headlessCommand.getBook() != book) {
+            this.closeHeadlessCommand();
+            this.headlessCommand = new HeadlessCommand(book, this.getTargetStore(), UserPreferences.getInstance());
+        }
+        return this.headlessCommand;
+    }
+
+    private synchronized void closeHeadlessCommand() {
+        if (this.headlessCommand != null) {
+            this.headlessCommand.close();
+            this.headlessCommand = null;
+        }
+    }
+
     @Override
     public String getName() {
         return "ReBalance";
     }
 
     private synchronized void rebalance() {
+        this.firstPaint.set(Metrics.FIRST_PAINT.begin());
         if (this.rebalanceWindow == null) {
             this.rebalanceWindow = new ReBalanceWindow(this);
             this.rebalanceWindow.setVisible(true);
+        } else if (!this.rebalanceWindow.isVisible()) {
+            this.rebalanceWindow.awaitFirstPaint();
+            this.rebalanceWindow.reopen();
         } else {
-            this.rebalanceWindow.setVisible(true);
+            this.rebalanceWindow.awaitFirstPaint();
             this.rebalanceWindow.toFront();
             this.rebalanceWindow.requestFocus();
         }
     }
 
+    // Called by the window when it first paints after a request to show it (see Metrics.FIRST_PAINT).
+    void windowPainted() {
+        Timing.Span span = this.firstPaint.getAndSet(null);
+        if (span != null) {
+            span.close();
+        }
+    }
+
+    synchronized TargetStore getTargetStore() {
+        if (this.targetStore == null) {
+            this.targetStore = new TargetStore(UserPreferences.getInstance(), this.preferenceWriter,
+                    () -> this.getContext().getCurrentAccountBook());
+        }
+        return this.targetStore;
+    }
+
+    PreferenceWriter getPreferenceWriter() {
+        return this.preferenceWriter;
+    }
+
     FeatureModuleContext getUnprotectedContext() {
         return this.getContext();
     }
 
+    // Closing the window only hides it, so the next invocation can show it again at once.
+    synchronized void hideRebalanceWindow() {
+        if (this.rebalanceWindow != null) {
+            this.rebalanceWindow.hideWindow();
+        }
+    }
+
     synchronized void closeRebalanceWindow() {
         if (this.rebalanceWindow != null) {
             this.rebalanceWindow.goAway();
@@ -0,0 +1,125 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+
+// Timings of the extension's hot paths, published through JMX (see MetricsMXBean) and, where the JVM supports
+// it, as Flight Recorder events (see OperationEvent).
+final class Metrics implements MetricsMXBean {
+    static final Timing ACCOUNT_LOAD = new Timing("AccountLoad");
+    static final Timing REBALANCE = new Timing("Rebalance");
+    static final Timing PREFERENCE_READ = new Timing("PreferenceRead");
+    static final Timing PREFERENCE_WRITE = new Timing("PreferenceWrite");
+    static final Timing TABLE_PAINT = new Timing("TablePaint");
+    static final Timing COLUMN_WIDTHS = new Timing("ColumnWidths");
+    static final Timing FIRST_PAINT = new Timing("FirstPaint");      // From a request to show the window
+
+    private static final String OBJECT_NAME = "com.moneydance.modules.features.rebalance:type=Metrics";
+
+    // Replaces the bean of an earlier instance of the extension (e.g. after it was reinstalled).
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException | SecurityException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            // Not registered
+        }
+    }
+
+    @Override
+    public TimingSnapshot getAccountLoad() {
+        return ACCOUNT_LOAD.snapshot();
+    }
+
+    @Override
+    public TimingSnapshot getRebalance() {
+        return REBALANCE.snapshot();
+    }
+
+    @Override
+    public TimingSnapshot getPreferenceRead() {
+        return PREFERENCE_READ.snapshot();
+    }
+
+    @Override
+    public TimingSnapshot getPreferenceWrite() {
+        return PREFERENCE_WRITE.snapshot();
+    }
+
+    @Override
+    public TimingSnapshot getTablePaint() {
+        return TABLE_PAINT.snapshot();
+    }
+
+    @Override
+    public TimingSnapshot getColumnWidths() {
+        return COLUMN_WIDTHS.snapshot();
+    }
+
+    @Override
+    public TimingSnapshot getFirstPaint() {
+        return FIRST_PAINT.snapshot();
+    }
+
+    // The last first paint, or -1 if the window has not been shown.
+    @Override
+    public long getFirstPaintMillis() {
+        TimingSnapshot snapshot = FIRST_PAINT.snapshot();
+        return snapshot.getCount() == 0 ? -1 : Math.round(snapshot.getLastMillis());
+    }
+
+    @Override
+    public void reset() {
+        for (Timing timing : new Timing[]{ACCOUNT_LOAD, REBALANCE, PREFERENCE_READ, PREFERENCE_WRITE, TABLE_PAINT,
+                COLUMN_WIDTHS, FIRST_PAINT}) {
+            timing.reset();
+        }
+    }
+}
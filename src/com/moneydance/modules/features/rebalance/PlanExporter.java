@@ -0,0 +1,166 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Vector;
+
+import static com.moneydance.modules.features.rebalance.RebalanceRows.*;
+
+
+// Write plans, one row per security, as CSV or as a JSON array of objects, as they are produced: nothing is kept
+// after an account's rows are written, so any number of accounts can be exported. Target, Actual, and Result are
+// percentages; Buy and Sell are shares; empty cells are empty (CSV) or null (JSON).
+final class PlanExporter implements Closeable {
+    enum Format {
+        CSV, JSON;
+
+        // JSON for a .json file, otherwise CSV.
+        static Format forFile(String fileName) {
+            return fileName.toLowerCase().endsWith(".json") ? JSON : CSV;
+        }
+    }
+
+    static final String[] FIELDS
+            = {"account", "name", "symbol", "target", "actual", "shares", "price", "value", "buy", "sell", "result"};
+    private static final int[] COLUMNS
+            = {NAME_COL, SYMBOL_COL, TARGET_COL, ACTUAL_COL, SHARE_COL, PRICE_COL, VALUE_COL, BUY_COL, SELL_COL,
+            RESULT_COL};
+
+    private final Writer out;
+    private final Format format;
+    private boolean first = true;
+
+    PlanExporter(Writer out, Format format) throws IOException {
+        this.out = out;
+        this.format = format;
+        if (format == Format.CSV) {
+            for (int i = 0; i < FIELDS.length; i++) {
+                out.write(i == 0 ? "" : ",");
+                out.write(FIELDS[i]);
+            }
+            out.write("\n");
+        } else {
+            out.write("[");
+        }
+    }
+
+    // rows are an account's table rows (not the footer).
+    void write(String accountName, List<Vector<Object>> rows) throws IOException {
+        for (Vector<Object> entry : rows) {
+            if (format == Format.CSV) {
+                writeCsv(accountName);
+                for (int column : COLUMNS) {
+                    out.write(",");
+                    Object value = entry.get(column);
+                    if (value instanceof String) {
+                        writeCsv((String) value);
+                    } else if (value != null) {
+                        out.write(format(column, (Double) value, ""));
+                    }
+                }
+                out.write("\n");
+            } else {
+                out.write(first ? "\n{" : ",\n{");
+                first = false;
+                writeJsonField(0, accountName);
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    Object value = entry.get(COLUMNS[i]);
+                    if (value == null || value instanceof String) {
+                        writeJsonField(i + 1, (String) value);
+                    } else {
+                        out.write(",\"" + FIELDS[i + 1] + "\":" + format(COLUMNS[i], (Double) value, "null"));
+                    }
+                }
+                out.write("}");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (format == Format.JSON) {
+            out.write(first ? "]\n" : "\n]\n");
+        }
+        out.close();
+    }
+
+    // Numbers without an exponent or trailing zeros; NaN and infinity (e.g. the price of a worthless security)
+    // become the empty value.
+    private static String format(int column, double value, String empty) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return empty;
+        }
+        if (column == TARGET_COL || column == ACTUAL_COL || column == RESULT_COL) {
+            value *= 100.0;
+        }
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    private void writeCsv(String text) throws IOException {
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            out.write(text);
+        } else {
+            out.write('"');
+            out.write(text.replace("\"", "\"\""));
+            out.write('"');
+        }
+    }
+
+    private void writeJsonField(int field, String text) throws IOException {
+        out.write(field == 0 ? "\"" : ",\"");
+        out.write(FIELDS[field]);
+        out.write("\":");
+        if (text == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
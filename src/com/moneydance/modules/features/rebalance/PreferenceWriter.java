@@ -0,0 +1,97 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+// Write-behind for preference settings. A change marks a setting dirty by scheduling its write under a key; a later
+// write under the same key replaces the earlier one. The pending writes run on a background thread once no change
+// has arrived for QUIET_PERIOD_MS, so a burst of changes (e.g. holding down a spinner arrow) produces one write.
+class PreferenceWriter {
+    private static final long QUIET_PERIOD_MS = 500;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ReBalance preference writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Runnable> pending = new LinkedHashMap<>();
+    private ScheduledFuture<?> scheduledFlush;
+    // Held while a batch is taken and written, so that batches (e.g. the scheduler's and a flush on window close)
+    // are written in the order they were taken and an older value of a setting cannot land after a newer one.
+    private final Object writeLock = new Object();
+
+    synchronized void schedule(String key, Runnable write) {
+        pending.remove(key); // Keep writes in order of their most recent change
+        pending.put(key, write);
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+        }
+        scheduledFlush = scheduler.schedule(this::flush, QUIET_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Perform all pending writes now, on the calling thread, after any batch already being written.
+    void flush() {
+        synchronized (writeLock) {
+            List<Runnable> writes;
+            synchronized (this) {
+                writes = new ArrayList<>(pending.values());
+                pending.clear();
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                    scheduledFlush = null;
+                }
+            }
+            for (Runnable write : writes) {
+                try (Timing.Span ignored = Metrics.PREFERENCE_WRITE.begin()) {
+                    write.run();
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+        }
+    }
+
+    void shutdown() {
+        flush();
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,83 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import com.infinitekind.moneydance.model.CurrencySnapshot;
+import com.infinitekind.moneydance.model.CurrencyType;
+
+import java.util.List;
+
+
+// A security's prices over time, read forward by cursors, so a backtest can replay years of prices without
+// copying them. Any number of cursors may read one history at once.
+interface PriceHistory {
+    Cursor cursor();
+
+    interface Cursor {
+        // Date (yyyymmdd) of the current price, or Integer.MAX_VALUE after the last one
+        int date();
+
+        double price();
+
+        void advance();
+    }
+
+    // The price snapshots Moneydance keeps for a security, in date order. Snapshots without a rate are skipped.
+    static PriceHistory of(CurrencyType security) {
+        List<CurrencySnapshot> snapshots = security.getSnapshots();
+        return () -> new Cursor() {
+            private int next = -1;
+
+            {
+                advance();
+            }
+
+            @Override
+            public int date() {
+                return next < snapshots.size() ? snapshots.get(next).getDateInt() : Integer.MAX_VALUE;
+            }
+
+            @Override
+            public double price() {
+                return 1.0 / snapshots.get(next).getUserRate();
+            }
+
+            @Override
+            public void advance() {
+                do {
+                    next++;
+                } while (next < snapshots.size() && snapshots.get(next).getUserRate() == 0.0);
+            }
+        };
+    }
+}
@@ -32,12 +32,13 @@
 
 package com.moneydance.modules.features.rebalance;
 
-import com.infinitekind.moneydance.model.Account.AccountType;
-import com.infinitekind.util.StreamVector;
 import com.moneydance.awt.*;
 import com.infinitekind.moneydance.model.*;
 import com.moneydance.apps.md.controller.UserPreferences;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
 
 import javax.swing.*;
@@ -46,6 +47,8 @@ import javax.swing.table.TableCellRenderer;
 import java.awt.*;
 import java.awt.event.*;
 
+import static com.moneydance.modules.features.rebalance.RebalanceRows.*;
+
 
 // Window used for the ReBalance interface
 
@@ -53,15 +56,30 @@ class ReBalanceWindow extends JFrame implements ChangeListener, ItemListener, Ta
     private final Main extension;
     private final AccountBook book;
     private UserPreferences up;
+    private final TargetStore targetStore;
+    private final PreferenceWriter preferenceWriter;
+    private volatile boolean firstPaintPending = true;   // Until the paint after a request to show the window
 
     private final JComboBox<String> accountList;
     private final JCheckBox percentThresholdCheckbox;
     private final JSpinner percentThreshold;
-    private final double percentThresholdDefault = 1.0; // 1%
     private final JCheckBox valueThresholdCheckbox;
     private final JSpinner valueThreshold;
-    private final int valueThresholdDefault = 1000;
+    private final JComboBox<RebalanceEngine.Method> methodList;
+    private final JCheckBox livePricesCheckbox = new JCheckBox("Live prices", true);
+    private final LivePrices livePrices;
     private final FooterTable rebalanceTable;
+    private final JLabel statusLabel = new JLabel(" ");
+    private final JButton modelButton = new JButton("Model: None");
+    private final AccountCache accountCache;
+    private final AccountLoader accountLoader;
+    private final AccountCatalog accountCatalog;
+    private final LotIndex lotIndex;
+    private SwingWorker<AccountSnapshot, Void> accountLoadWorker;
+    private ThresholdSweep sweep;           // Of the positions and targets shown, once computed
+    private SwingWorker<ThresholdSweep, Void> sweepWorker;
+    private RebalanceEngine engine = new RebalanceEngine();
+    private CurrencyScales scales;      // Of the account shown
     private final Color LightGoldenRodYellow = new Color(0XFAFAD2);
 
     ReBalanceWindow(Main extension) {
@@ -69,6 +87,13 @@ class ReBalanceWindow extends JFrame implements ChangeListener, ItemListener, Ta
         this.extension = extension;
         book = extension.getUnprotectedContext().getCurrentAccountBook();
         up = UserPreferences.getInstance();
+        targetStore = extension.getTargetStore();
+        preferenceWriter = extension.getPreferenceWriter();
+        accountCache = new AccountCache(book);
+        accountLoader = new AccountLoader(book, targetStore, accountCache);
+        accountCatalog = new AccountCatalog(book, () -> SwingUtilities.invokeLater(this::accountsChanged));
+        lotIndex = new LotIndex(book);
+        livePrices = new LivePrices(book.getCurrencies(), this::pricesChanged);
 
         JPanel pane = new JPanel(new GridBagLayout());
         setContentPane(pane);
@@ -94,10 +119,23 @@ class ReBalanceWindow extends JFrame implements ChangeListener, ItemListener, Ta
         c.gridy = 0;
         pane.add(label3, c);
 
+        JLabel label4 = new JLabel("Method");
+        c.gridx = 3;
+        c.gridy = 0;
+        pane.add(label4, c);
+
         // Row 2
         c.anchor = GridBagConstraints.LINE_START;
 
-        accountList = new JComboBox<>(getAllInvestmentAccounts());
+        accountList = new JComboBox<>(new Vector<>(accountCatalog.getAccountIds()));
+        accountList.setRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                String label = value == null ? null : accountCatalog.getLabel((String) value);
+                return super.getListCellRendererComponent(list, label, index, isSelected, cellHasFocus);
+            }
+        });
         accountList.addItemListener(this);
         c.fill = GridBagConstraints.HORIZONTAL;
         c.gridx = 0;
@@ -107,7 +145,7 @@ class ReBalanceWindow extends JFrame implements ChangeListener, ItemListener, Ta
         JPanel ptPanel = new JPanel();
         percentThresholdCheckbox = new JCheckBox("", false);
         ptPanel.add(percentThresholdCheckbox);
-        SpinnerModel percentModel = new SpinnerNumberModel(percentThresholdDefault, 0.0, 100.0, 0.1);
+        SpinnerModel percentModel = new SpinnerNumberModel(PT_DEFAULT, 0.0, 100.0, 0.1);
         percentThreshold = new JSpinner(percentModel);
         ptPanel.add(percentThreshold);
         c.gridx = 1;
@@ -117,22 +155,32 @@ class ReBalanceWindow extends JFrame implements ChangeListener, ItemListener, Ta
         JPanel amtPanel = new JPanel();
         valueThresholdCheckbox = new JCheckBox("", false);
         amtPanel.add(valueThresholdCheckbox);
-        SpinnerModel valueModel = new SpinnerNumberModel(valueThresholdDefault, 0, 100000, 100);
+        SpinnerModel valueModel = new SpinnerNumberModel(VT_DEFAULT, 0, 100000, 100);
         valueThreshold = new JSpinner(valueModel);
         amtPanel.add(valueThreshold);
         c.gridx = 2;
         c.gridy = 1;
         pane.add(amtPanel, c);
 
+        methodList = new JComboBox<>(RebalanceEngine.Method.values());
+        methodList.setToolTipText("Greedy: buy in table order. Optimal: minimize drift. Exact: buy in table order, "
+                + "in whole shares or smallest units, never overspending. All but greedy honor the cash target.");
+        c.gridx = 3;
+        c.gridy = 1;
+        pane.add(methodList, c);
+
         // Set preferences before adding listeners to avoid running them before table is created
         restoreThresholdPreferences();
+        livePricesCheckbox.setSelected(up.getBoolSetting(RB_PREF + SEP + LIVE, true));
+        livePricesCheckbox.addItemListener(e -> livePricesChanged());
         percentThresholdCheckbox.addChangeListener(this);
         percentThreshold.addChangeListener(this);
         valueThresholdCheckbox.addChangeListener(this);
         valueThreshold.addChangeListener(this);
+        methodList.addActionListener(e -> stateChanged(new ChangeEvent(methodList)));
 
-        // Row 3
-        FooterTableModel tableModel = createRebalanceTableModel((String) accountList.getSelectedItem());
+        // Row 3 (filled in by loadSelectedAccount)
+        FooterTableModel tableModel = createRebalanceTableModel(new Vector<>(), new Vector<>(), null);
         rebalanceTable = new FooterTable(tableModel) {
             @Override
             public Component prepareRenderer(TableCellRenderer renderer, int row, int column) {
@@ -148,7 +196,7 @@ class ReBalanceWindow extends JFrame implements ChangeListener, ItemListener, Ta
             }
         };
         c.gridx = 0;
-        c.gridwidth = 3;
+        c.gridwidth = 4;
         c.gridy = 2;
         FooterTablePane tablePanel = new FooterTablePane(rebalanceTable);
         tablePanel.setBorder(BorderFactory.createMatteBorder(1, 1, 1, 1, Color.GRAY));
@@ -161,250 +209,402 @@ class ReBalanceWindow extends JFrame implements ChangeListener, ItemListener, Ta
         JButton minusButton = new JButton("-");
         minusButton.addActionListener(e -> deleteSecurity());
         JPanel panel = new JPanel();
+        modelButton.addActionListener(e -> chooseModel());
+        modelButton.setToolTipText("Follow a model portfolio's targets, shared with other accounts");
         JButton copyTargetButton = new JButton("Copy Targets");
         copyTargetButton.addActionListener(e -> copyTargets());
+        JButton lotsButton = new JButton("Sell Lots");
+        lotsButton.addActionListener(e -> showLotSales());
+        JButton rebalanceAllButton = new JButton("Rebalance All");
+        rebalanceAllButton.addActionListener(e -> rebalanceAllAccounts());
+        JButton curveButton = new JButton("Tolerance Curve");
+        curveButton.addActionListener(e -> showToleranceCurve());
+        JButton backtestButton = new JButton("Backtest");
+        backtestButton.addActionListener(e -> showBacktest());
+        JButton exportButton = new JButton("Export Plan");
+        exportButton.addActionListener(e -> exportPlan());
+        JButton importButton = new JButton("Import Targets");
+        importButton.addActionListener(e -> importTargets());
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.setLayout(new BoxLayout(buttonPanel, BoxLayout.X_AXIS));
+        buttonPanel.add(curveButton);
+        buttonPanel.add(backtestButton);
+        buttonPanel.add(lotsButton);
+        buttonPanel.add(rebalanceAllButton);
+        buttonPanel.add(copyTargetButton);
+        buttonPanel.add(exportButton);
+        buttonPanel.add(importButton);
         panel.setLayout(new BoxLayout(panel, BoxLayout.X_AXIS));
         panel.add(plusButton);
         panel.add(minusButton);
+        panel.add(modelButton);
+        panel.add(livePricesCheckbox);
         c.gridx = 0;
         c.gridwidth = 1;
         c.gridy = 3;
         pane.add(panel, c);
+        c.gridx = 1;
+        c.gridy = 3;
+        pane.add(statusLabel, c);
         c.gridx = 2;
+        c.gridwidth = 2;
         c.gridy = 3;
-        pane.add(copyTargetButton, c);
+        pane.add(buttonPanel, c);
 
         setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         enableEvents(WindowEvent.WINDOW_CLOSING);
 
         pack();
         AwtUtil.centerWindow(this);
+        if (livePricesCheckbox.isSelected()) {
+            livePrices.start();
+        }
+        loadSelectedAccount();
     }
 
-    private Vector<String> getAllInvestmentAccounts() {
-        Vector<String> accounts = new Vector<>();
-
-        if (book != null) {
-            for (Account a : book.getRootAccount().getSubAccounts()) {
-                if (a.getAccountType() == AccountType.INVESTMENT
-                        && !a.getAccountIsInactive()
-                        && a.getCurrentBalance() > 0) {
-                    accounts.add(a.getAccountName());
-                }
+    // Bring the accounts dropdown (of account IDs, shown by label) up to date with the catalog by inserting,
+    // removing, and moving only the accounts that changed, so the selection survives unless its account went away.
+    private void accountsChanged() {
+        java.util.List<String> ids = accountCatalog.getAccountIds();
+        DefaultComboBoxModel<String> model = (DefaultComboBoxModel<String>) accountList.getModel();
+        java.util.Set<String> current = new HashSet<>(ids);
+        for (int i = model.getSize() - 1; i >= 0; i--) {
+            if (!current.contains(model.getElementAt(i))) {
+                model.removeElementAt(i);
             }
         }
-        Collections.sort(accounts);
-        return accounts;
-    }
-
-
-    private final String[] names
-            = {"Name", "Symbol", "Target", "Actual", "Shares", "Price", "Value", "Buy", "Sell", "Result"};
-    private final Vector<String> columnNames = new Vector<>(Arrays.asList(names));
-    private final int NAME_COL = columnNames.indexOf("Name");
-    private final int SYMBOL_COL = columnNames.indexOf("Symbol");
-    private final int TARGET_COL = columnNames.indexOf("Target");
-    private final int ACTUAL_COL = columnNames.indexOf("Actual");
-    private final int SHARE_COL = columnNames.indexOf("Shares");
-    private final int PRICE_COL = columnNames.indexOf("Price");
-    private final int VALUE_COL = columnNames.indexOf("Value");
-    private final int BUY_COL = columnNames.indexOf("Buy");
-    private final int SELL_COL = columnNames.indexOf("Sell");
-    private final int RESULT_COL = columnNames.indexOf("Result");
-    private final String[] types
-            = {"Text", "Text", "Percent", "Percent", "Integer", "Currency2", "Currency2", "Integer", "Integer", "Percent"};
-    private final Vector<String> columnTypes = new Vector<>(Arrays.asList(types));
-
-    private FooterTableModel createRebalanceTableModel(String accountName) {
-        Account account = book.getRootAccount().getAccountByName(accountName);
-        Vector<Vector<Object>> data = new Vector<>();
-        Vector<Vector<Object>> footer = new Vector<>();
-
-        fillRebalanceTable(accountName, data, footer);
-        return new FooterTableModel(data, footer, columnNames, columnTypes, account.getCurrencyType()) {
+        for (int i = 0; i < ids.size(); i++) {
+            if (i < model.getSize() && model.getElementAt(i).equals(ids.get(i))) {
+                continue;
+            }
+            int from = model.getIndexOf(ids.get(i));
+            if (from >= 0) {
+                model.removeElementAt(from);    // Relabeled, e.g. renamed
+            }
+            model.insertElementAt(ids.get(i), i);
+        }
+        accountList.repaint();  // Labels may have changed
+        if (model.getSelectedItem() == null && model.getSize() > 0) {
+            model.setSelectedItem(model.getElementAt(0));   // The first account appeared
+        }
+    }
+
+
+    private final Vector<String> columnNames = RebalanceRows.columnNames();
+    private final Vector<String> columnTypes = RebalanceRows.columnTypes();
+
+    private FooterTableModel createRebalanceTableModel(Vector<Vector<Object>> data, Vector<Vector<Object>> footer,
+                                                       CurrencyType currency) {
+        return new FooterTableModel(data, footer, columnNames, columnTypes, currency) {
             @Override
             public boolean isCellEditable(int row, int column) {
                 return column == TARGET_COL;
             }
+
+            // Cash target (first footer row, if the account has cash), when the method honors it
+            @Override
+            boolean isFooterCellEditable(int row, int column) {
+                return row == 0 && column == TARGET_COL && getFooterModel().getRowCount() > 1
+                        && ((RebalanceEngine.Method) methodList.getSelectedItem()).honorsCashTarget();
+            }
         };
     }
 
-    private void fillRebalanceTable(String accountName, Vector<Vector<Object>> data, Vector<Vector<Object>> footer) {
-        Account account = book.getRootAccount().getAccountByName(accountName);
-        Double scale = Math.pow(10.0, account.getCurrencyType().getDecimalPlaces());
-        Double totalValue = account.getRecursiveBalance() / scale;
+    // Load the selected account and compute its plan on a background thread, then show it. Selecting another
+    // account before the load finishes cancels it; with none selected (e.g. the account was deleted), the table is
+    // emptied.
+    private void loadSelectedAccount() {
+        String accountId = (String) accountList.getSelectedItem();
+        if (accountLoadWorker != null) {
+            accountLoadWorker.cancel(true);
+            accountLoadWorker = null;
+        }
+        if (accountId == null) {
+            clearAccount();
+            return;
+        }
+        RebalancePolicy policy = policy();
 
-        // Securities
-        for (Account a : account.getSubAccounts()) {
-            CurrencyType ct = a.getCurrencyType();
-            if (a.getAccountType() == AccountType.SECURITY
-                    && !a.getAccountIsInactive()
-                    && !ct.getHideInUI()
-                    && ct.getCurrencyType() == CurrencyType.Type.SECURITY) {
-                createEntry(data, a, a.getAccountName(), ct.getTickerSymbol(), totalValue);
+        statusLabel.setText("Loading " + accountCatalog.getLabel(accountId) + "...");
+        rebalanceTable.setEnabled(false);
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        accountLoadWorker = new SwingWorker<AccountSnapshot, Void>() {
+            @Override
+            protected AccountSnapshot doInBackground() {
+                return accountLoader.load(accountId, policy);
             }
-        }
-        for (Object s : getSecuritiesFromPreferences(accountName)) {
-            createEntryFromPreferences(data, (String) s);
-        }
-
-        // Cash
-        if (account.getCurrencyType().getCurrencyType() == CurrencyType.Type.CURRENCY) {
-            createEntry(footer, account, "Cash", null, totalValue);
-        }
-
-        // Total value
-        Vector<Object> totals = new Vector<>(names.length);
-        totals.add("Total");
-        totals.add(null);
-        totals.add(null);
-        totals.add(null);
-        totals.add(null);
-        totals.add(null);
-        totals.add(totalValue);
-        totals.add(null);
-        totals.add(null);
-        totals.add(null);
-        footer.add(totals);
-
-        rebalance(data, footer, totalValue);
-    }
-
-    private void createEntry(Vector<Vector<Object>> entries, Account security, String name, String symbol,
-                             Double totalValue) {
-        Double shares = security.getBalance() / Math.pow(10.0, security.getCurrencyType().getDecimalPlaces());
-        Double price = 1.0 / security.getCurrencyType().getUserRate();
-        createEntry(entries, name, symbol,
-                getTargetFromPreferenences(security.getParentAccount().getAccountName(), name),
-                shares * price / totalValue, shares, price, shares * price);
-    }
-
-    private Vector<Object> createEntry(Vector<Vector<Object>> entries, String name, String symbol, Double target,
-                                       Double actual, Double shares, Double price, Double value) {
-        Vector<Object> entry = new Vector<>(names.length);
-        entry.add(name);
-        entry.add(symbol);
-        entry.add(target);
-        entry.add(actual);
-        entry.add(shares);
-        entry.add(price);
-        entry.add(value);
-        entry.add(0.0);   // calc at end
-        entry.add(0.0);   // calc at end
-        entry.add(0.0);   // calc at end
-        entries.add(entry);
-        return entry;
-    }
-
-    // User can add "pseudo securities" to accounts for calculation purposes. These securities appear only in
-    // Preferences, not in MD accounts.
-    private Vector<Object> createEntryFromPreferences(Vector<Vector<Object>> data, String securityName) {
-        for (int i = 0; i < data.size(); i++) {
-            if (securityName.equals(data.get(i).get(NAME_COL))) {
-                return data.get(i); // Actual security in MD account
+
+            @Override
+            protected void done() {
+                if (isCancelled() || accountLoadWorker != this) {
+                    return;
+                }
+                accountLoadWorker = null;
+                statusLabel.setText(" ");
+                rebalanceTable.setEnabled(true);
+                setCursor(Cursor.getDefaultCursor());
+                try {
+                    showAccount(get());
+                } catch (Exception e) {
+                    statusLabel.setText("Could not load " + accountCatalog.getLabel(accountId));
+                    e.printStackTrace(System.err);
+                }
             }
-        }
-        CurrencyType ct = book.getCurrencies().getCurrencyByName(securityName);
-        if (ct != null) {
-            return createEntry(data, securityName, ct.getTickerSymbol(), 0.0, 0.0, 0.0, 1.0 / ct.getUserRate(), 0.0);
-        } else {
-            return createEntry(data, securityName, "unknown", 0.0, 0.0, 0.0, 1.0, 0.0);
-        }
+        };
+        accountLoadWorker.execute();
     }
 
-    // Something simple should work.
-    // First, find all securities to sell and cash that can be used.
-    // Then, compute integer number of shares to buy.
-    // Goal: get close to targets, but do not incur unnecessary trading costs (i.e., buy 1 or 2 shares).
-    private void rebalance(Vector<Vector<Object>> data, Vector<Vector<Object>> footer) {
-        Account account = book.getRootAccount().getAccountByName((String) accountList.getSelectedItem());
-        Double totalValue = account.getRecursiveBalance() / Math.pow(10.0, account.getCurrencyType().getDecimalPlaces());
+    // Compute plans for every investment account in parallel, off the Swing thread, and list their trades.
+    private void rebalanceAllAccounts() {
+        java.util.List<String> accountIds = accountCatalog.getAccountIds();
+        RebalancePolicy policy = policy();
 
-        rebalance(data, footer, totalValue);
-    }
+        statusLabel.setText("Rebalancing " + accountIds.size() + " accounts...");
+        new SwingWorker<java.util.List<AccountSnapshot>, Void>() {
+            @Override
+            protected java.util.List<AccountSnapshot> doInBackground() throws InterruptedException {
+                return new BatchRebalancer(accountLoader).rebalanceAll(accountIds, policy);
+            }
 
-    private void rebalance(Vector<Vector<Object>> data, Vector<Vector<Object>> footer, Double totalValue) {
-        Vector<Object> cashEntry = footer.get(0);
-        Double cash = (Double) cashEntry.get(VALUE_COL);
-        Double availableFunds = cash;
-        Double totalTarget = 0.0;
+            @Override
+            protected void done() {
+                statusLabel.setText(" ");
+                try {
+                    new TradeListDialog(ReBalanceWindow.this, get()).setVisible(true);
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+        }.execute();
+    }
 
-        // Sell excess shares
-        for (Vector<Object> entry : data) {
-            entry.set(SELL_COL, null);
-            entry.set(BUY_COL, null);
-            Double excessAmount = extractExcessValue(entry, totalValue);
-            availableFunds += excessAmount;
-            totalTarget += excessAmount;
+    // Write the plan of this account, or of all accounts, to a CSV or JSON file (by its extension). Other accounts'
+    // plans are computed in parallel and written as they are ready.
+    private void exportPlan() {
+        String accountId = (String) accountList.getSelectedItem();
+        Object[] choices = {"This Account", "All Accounts"};
+        int choice = JOptionPane.showOptionDialog(this, "Export the plan of", "Export Plan",
+                JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, choices, choices[0]);
+        JFileChooser chooser = new JFileChooser();
+        if (choice < 0 || chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
         }
-
-        // Spend funds on new shares
-        for (Vector<Object> entry : data) {
-            availableFunds -= useExcessValue(entry, totalValue, availableFunds);
+        File file = chooser.getSelectedFile();
+        FooterTableModel model = rebalanceTable.getDataModel();
+        java.util.List<Vector<Object>> rows = new ArrayList<>();
+        for (int i = 0; i < model.getRowCount(); i++) {
+            rows.add(model.getRow(i));
         }
+        java.util.List<String> accountIds = accountCatalog.getAccountIds();
+        RebalancePolicy policy = policy();
 
-        // Adjust cash
-        cashEntry.set(SELL_COL, null);
-        cashEntry.set(BUY_COL, null);
-        totalTarget += cashEntry.get(TARGET_COL) == null ? 0.0 : (Double) cashEntry.get(TARGET_COL);
-        if (!cash.equals(availableFunds)) {
-            if (cash > availableFunds) {
-                cashEntry.set(SELL_COL, cash - availableFunds);
-            } else {
-                cashEntry.set(BUY_COL, availableFunds - cash);
+        statusLabel.setText("Exporting...");
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException, InterruptedException {
+                try (PlanExporter exporter = new PlanExporter(Files.newBufferedWriter(file.toPath(),
+                        StandardCharsets.UTF_8), PlanExporter.Format.forFile(file.getName()))) {
+                    if (choice == 0) {
+                        exporter.write(accountCatalog.getLabel(accountId), rows);
+                    } else {
+                        new BatchRebalancer(accountLoader).rebalanceAll(accountIds, policy, snapshot -> {
+                            try {
+                                exporter.write(accountCatalog.getLabel(snapshot.accountId), snapshot.data);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                    }
+                }
+                return null;
             }
-        }
-        //cashEntry.set(TARGET_COL, null); // No cash target
-        cashEntry.set(RESULT_COL, availableFunds / totalValue);
 
-        footer.get(1).set(TARGET_COL, totalTarget);
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    statusLabel.setText("Exported to " + file.getName());
+                } catch (Exception e) {
+                    statusLabel.setText("Could not export to " + file.getName());
+                    e.printStackTrace(System.err);
+                }
+            }
+        }.execute();
     }
 
-    // Find excess value of securities that exceed target by appropriate amount (either % or magnitude).
-    // Return amount of sale or purchase
-    private Double extractExcessValue(Vector<Object> entry, Double totalValue) {
-        Double targetError = (Double) entry.get(ACTUAL_COL) - (Double) entry.get(TARGET_COL);
+    // Read targets for any number of accounts from a file (see TargetImporter), apply them with one write per
+    // account, then reload the shown account once.
+    private void importTargets() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        statusLabel.setText("Importing...");
+        new SwingWorker<String, Void>() {
+            @Override
+            protected String doInBackground() throws IOException {
+                TargetImporter importer = new TargetImporter();
+                try (Reader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                    importer.read(in, PlanExporter.Format.forFile(file.getName()));
+                }
+                int accounts = importer.applyTo(accountCatalog::findAccount, targetStore::mergeTargets).size();
+                String status = "Imported " + importer.getAppliedCount() + " targets for " + accounts + " accounts";
+                if (!importer.getRejectedAccounts().isEmpty()) {
+                    status += "; no investment account " + String.join(", ", importer.getRejectedAccounts());
+                }
+                return status;
+            }
 
-        if (targetError > 0.0) {
-            Double price = (Double) entry.get(PRICE_COL);
-            Double valueError = targetError * totalValue;
-            Double sharesToSell = Math.floor(valueError / price);
-            if (sharesToSell > 0.0 && exceedsALimit(targetError, valueError)) {
-                entry.set(SELL_COL, sharesToSell);
-                Double oldShares = (Double) entry.get(SHARE_COL) - sharesToSell;
-                entry.set(RESULT_COL, oldShares * price / totalValue);
-                return sharesToSell * price;
+            @Override
+            protected void done() {
+                try {
+                    statusLabel.setText(get());
+                    loadSelectedAccount();
+                } catch (Exception e) {
+                    Throwable cause = e.getCause() == null ? e : e.getCause();
+                    statusLabel.setText("Could not import: " + cause.getMessage());
+                    e.printStackTrace(System.err);
+                }
             }
-        }
-        entry.set(RESULT_COL, entry.get(ACTUAL_COL));
-        return 0.0;
+        }.execute();
     }
 
-    private Double useExcessValue(Vector<Object> entry, Double totalValue, Double availableFunds) {
-        Double targetError = (Double) entry.get(TARGET_COL) - (Double) entry.get(ACTUAL_COL);
+    // Show the tax lots the planned sells would draw on. The lots are read off the Swing thread, since the first
+    // request for a security builds its lots from its transactions.
+    private void showLotSales() {
+        String accountId = (String) accountList.getSelectedItem();
+        FooterTableModel model = rebalanceTable.getDataModel();
+        java.util.List<Vector<Object>> sells = new ArrayList<>();
+        for (int i = 0; i < model.getRowCount(); i++) {
+            if (!Double.isNaN(model.getDouble(i, SELL_COL))) {
+                sells.add(model.getRow(i));
+            }
+        }
+        if (accountId == null || sells.isEmpty()) {
+            statusLabel.setText("No sells planned");
+            return;
+        }
+        new SwingWorker<Map<Object, java.util.List<TaxLot>>, Void>() {
+            @Override
+            protected Map<Object, java.util.List<TaxLot>> doInBackground() {
+                Map<String, Account> securities = new HashMap<>();
+                for (Account a : accountCache.getAccount(accountId).getSubAccounts()) {
+                    securities.put(a.getAccountName(), a);
+                }
+                Map<Object, java.util.List<TaxLot>> lots = new HashMap<>();
+                for (Vector<Object> entry : sells) {
+                    Account security = securities.get(entry.get(NAME_COL));
+                    if (security != null) {     // Pseudo securities have no lots
+                        lots.put(entry.get(NAME_COL), lotIndex.getLots(security));
+                    }
+                }
+                return lots;
+            }
 
-        if (availableFunds > 0.0 && targetError > 0.0) {
-            Double valueError = targetError * totalValue;
-            Double price = (Double) entry.get(PRICE_COL);
-            Double sharesToBuy = Math.floor(valueError / price);
-            if (sharesToBuy > 0.0 && exceedsALimit(targetError, valueError)) {
-                entry.set(BUY_COL, sharesToBuy);
-                Double newShares = (Double) entry.get(SHARE_COL) + sharesToBuy;
-                entry.set(RESULT_COL, newShares * price / totalValue);
-                return sharesToBuy * price;
+            @Override
+            protected void done() {
+                try {
+                    new LotSaleDialog(ReBalanceWindow.this, accountCatalog.getLabel(accountId), sells, get())
+                            .setVisible(true);
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+                }
             }
+        }.execute();
+    }
+
+    // Backtest the shown targets over the securities' price histories, starting from the account's current value.
+    // The histories are found off the Swing thread.
+    private void showBacktest() {
+        String accountId = (String) accountList.getSelectedItem();
+        FooterTableModel model = rebalanceTable.getDataModel();
+        if (accountId == null || model.getFooterModel().getRowCount() == 0) {
+            return;
         }
-        entry.set(RESULT_COL, entry.get(ACTUAL_COL));
-        return 0.0;
+        java.util.List<String> names = new ArrayList<>();
+        java.util.List<Double> targets = new ArrayList<>();
+        for (int i = 0; i < model.getRowCount(); i++) {
+            names.add(model.getString(i, NAME_COL));
+            targets.add(targetAt(model, i));
+        }
+        Backtest backtest = new Backtest(accountCache.getTotalValue(accountId), targetAt(model.getFooterModel(), 0),
+                scales == null ? 100 : scales.getCashUnits());
+        RebalancePolicy policy = policy();
+        new SwingWorker<Backtest, Void>() {
+            @Override
+            protected Backtest doInBackground() {
+                for (int i = 0; i < names.size(); i++) {
+                    CurrencyType security = book.getCurrencies().getCurrencyByName(names.get(i));
+                    if (security != null) {
+                        backtest.addSecurity(names.get(i), targets.get(i), PriceHistory.of(security),
+                                CurrencyScales.unitsOf(security));
+                    }
+                }
+                return backtest;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    new BacktestDialog(ReBalanceWindow.this, accountCatalog.getLabel(accountId), get(), policy)
+                            .setVisible(true);
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+        }.execute();
     }
 
-    private boolean exceedsALimit(Double targetError, Double valueError) {
-        Double percentLimit = percentThresholdCheckbox.isSelected() ? (Double) percentThreshold.getValue() / 100.0
-                : Double.MAX_VALUE;
-        Double valueLimit = valueThresholdCheckbox.isSelected() ? (Double) valueThreshold.getValue()
+    // Show an empty table, and undo the state of a load in progress, whose done() does nothing once cancelled.
+    private void clearAccount() {
+        invalidateSweep();
+        statusLabel.setText(" ");
+        rebalanceTable.setEnabled(true);
+        setCursor(Cursor.getDefaultCursor());
+        engine = new RebalanceEngine();
+        rebalanceTable.setModel(createRebalanceTableModel(new Vector<>(), new Vector<>(), null));
+    }
+
+    private void showAccount(AccountSnapshot snapshot) {
+        invalidateSweep();
+        showModel(snapshot.accountId);
+        engine = snapshot.engine;
+        scales = snapshot.scales;
+        rebalanceTable.setModel(createRebalanceTableModel(snapshot.data, snapshot.footer, snapshot.currency));
+        rebalanceTable.getDataModel().addTableModelListener(this);
+        rebalanceTable.getFooterTable().getModel().addTableModelListener(this::footerChanged);
+        pack();
+    }
+
+    private void rebalance(FooterTableModel data) {
+        rebalance(data, accountCache.getTotalValue((String) accountList.getSelectedItem()));
+    }
+
+    private void rebalance(FooterTableModel data, Double totalValue) {
+        policy().applyTo(engine);
+        RebalanceRows.rebalance(engine, data, totalValue, scales);
+    }
+
+    // An empty target is zero.
+    private static double targetAt(FooterTableModel model, int row) {
+        double target = model.getDouble(row, TARGET_COL);
+        return Double.isNaN(target) ? 0.0 : target;
+    }
+
+    // Thresholds are read once per rebalance, not once per row.
+    private RebalancePolicy policy() {
+        return new RebalancePolicy(percentLimit(), valueLimit(), (RebalanceEngine.Method) methodList.getSelectedItem());
+    }
+
+    private double percentLimit() {
+        return percentThresholdCheckbox.isSelected() ? (Double) percentThreshold.getValue() / 100.0
                 : Double.MAX_VALUE;
+    }
 
-        return targetError > percentLimit || valueError > valueLimit;
+    private double valueLimit() {
+        return valueThresholdCheckbox.isSelected() ? ((Number) valueThreshold.getValue()).doubleValue()
+                : Double.MAX_VALUE;
     }
 
 
@@ -417,8 +617,8 @@ class ReBalanceWindow extends JFrame implements ChangeListener, ItemListener, Ta
                 JOptionPane.INFORMATION_MESSAGE, null, securities, securities[0]);
         CurrencyType ct = book.getCurrencies().getCurrencyByName(securityName);
 
-        createEntry(rebalanceTable.getDataVector(), securityName, ct.getTickerSymbol(),
-                0.0, 0.0, 0.0, 1.0 / ct.getUserRate(), 0.0);
+        rebalanceTable.getDataModel().appendRow(RebalanceRows.newEntry(securityName, ct.getTickerSymbol(),
+                0.0, 0.0, 0.0, 1.0 / ct.getUserRate(), 0.0));
         rebalanceTable.dataChanged();
         saveAccountPreferences();
     }
@@ -443,7 +643,7 @@ class ReBalanceWindow extends JFrame implements ChangeListener, ItemListener, Ta
         if (row != -1) {
             int rowModelIndex = rebalanceTable.convertRowIndexToModel(row);
 
-            rebalanceTable.getDataVector().remove(rowModelIndex);
+            rebalanceTable.getDataModel().removeRowsIf(r -> r == rowModelIndex);
             rebalanceTable.dataChanged();
             saveAccountPreferences();
         }
@@ -453,146 +653,436 @@ class ReBalanceWindow extends JFrame implements ChangeListener, ItemListener, Ta
     // Copy the targets from another account to the current one.
     //
     private void copyTargets() {
-        Vector<Vector<Object>> data = rebalanceTable.getDataVector();
-        String accountName = (String) accountList.getSelectedItem();
-        Account account = book.getRootAccount().getAccountByName(accountName);
-
+        FooterTableModel model = rebalanceTable.getDataModel();
         // Clear existing targets and remove pseudo securities
-        for (int i = data.size() - 1; i > 0; i--) { // because we are removing rows
-            Vector<Object> entry = data.get(i);
-            entry.set(TARGET_COL, null);
-            if (entry.get(SHARE_COL) == null || (Double) entry.get(SHARE_COL) == 0.0) {
-                data.remove(i);
-            }
+        for (int i = 0; i < model.getRowCount(); i++) {
+            model.setDouble(i, TARGET_COL, Double.NaN);
         }
+        model.removeRowsIf(row -> Double.isNaN(model.getDouble(row, SHARE_COL))
+                || model.getDouble(row, SHARE_COL) == 0.0);
         // Copy targets from another account and add pseudo securities as needed
-        Object[] accounts = getAllInvestmentAccounts().toArray();
-        String copyFromAccountName = (String) JOptionPane.showInputDialog(this, "Choose one", "Copy from Account",
-                JOptionPane.INFORMATION_MESSAGE, null, accounts, accounts[0]);
+        java.util.List<String> accountIds = accountCatalog.getAccountIds();
+        Object[] labels = new Object[accountIds.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = accountCatalog.getLabel(accountIds.get(i));
+        }
+        Object choice = JOptionPane.showInputDialog(this, "Choose one", "Copy from Account",
+                JOptionPane.INFORMATION_MESSAGE, null, labels, labels[0]);
+        String copyFromAccountId = choice == null ? null : accountIds.get(Arrays.asList(labels).indexOf(choice));
 
-        for (Object securityName : getSecuritiesFromPreferences(copyFromAccountName)) {
-            findOrAddSecurityAndSetTarget(data, copyFromAccountName,
-                    book.getCurrencies().getCurrencyByName((String) securityName));
+        if (copyFromAccountId != null) {
+            for (String securityName : targetStore.getSecurities(copyFromAccountId)) {
+                findOrAddSecurityAndSetTarget(model, copyFromAccountId, securityName);
+            }
         }
         rebalanceTable.dataChanged();
         saveAccountPreferences();
         pack();
     }
 
-    private void findOrAddSecurityAndSetTarget(Vector<Vector<Object>> data, String accountName, CurrencyType security) {
-        String securityName = security.getName();
-
-        for (int i = 0; i < data.size(); i++) {
-            Vector<Object> entry = data.get(i);
-            if (entry.get(NAME_COL).equals(securityName)) {
-                entry.set(TARGET_COL, getTargetFromPreferenences(accountName, securityName));
+    // Link the account to a model portfolio, create one from the account's targets, or unlink the account (which
+    // keeps a copy of the model's targets). While linked, editing the account's targets edits the model, and every
+    // linked account follows it.
+    private void chooseModel() {
+        String accountId = (String) accountList.getSelectedItem();
+        if (accountId == null) {
+            return;
+        }
+        String none = "None (this account's own targets)";
+        String create = "New model from these targets...";
+        java.util.List<Object> choices = new ArrayList<>();
+        choices.add(none);
+        choices.addAll(targetStore.getModelNames());
+        choices.add(create);
+        String current = targetStore.getModel(accountId);
+        Object choice = JOptionPane.showInputDialog(this, "Targets of " + accountCatalog.getLabel(accountId),
+                "Model Portfolio",
+                JOptionPane.QUESTION_MESSAGE, null, choices.toArray(), current == null ? none : current);
+        if (choice == null || choice.equals(current) || (choice == none && current == null)) {
+            return;
+        }
+        if (choice == none) {
+            targetStore.setModel(accountId, null);
+        } else if (choice == create) {
+            String modelName = JOptionPane.showInputDialog(this, "Model name");
+            if (modelName == null || modelName.trim().isEmpty()) {
                 return;
             }
+            modelName = modelName.trim();
+            if (targetStore.getModelNames().contains(modelName) && JOptionPane.showConfirmDialog(this,
+                    "Replace the targets of model " + modelName + "?", "Model Portfolio",
+                    JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+                return;
+            }
+            java.util.List<String> securities = targetStore.getSecurities(accountId);
+            double[] targets = new double[securities.size()];
+            for (int i = 0; i < targets.length; i++) {
+                targets[i] = targetStore.getTarget(accountId, securities.get(i));
+            }
+            targetStore.setModelTargets(modelName, securities.toArray(new String[0]), targets);
+            targetStore.setModel(accountId, modelName);
+        } else {
+            targetStore.setModel(accountId, (String) choice);
+        }
+        loadSelectedAccount();
+    }
+
+    private void showModel(String accountId) {
+        String modelName = targetStore.getModel(accountId);
+        modelButton.setText(modelName == null ? "Model: None" : "Model: " + modelName);
+    }
+
+    private void findOrAddSecurityAndSetTarget(FooterTableModel model, String accountId, String securityName) {
+        int row = model.findRow(securityName);
+        if (row == -1) {
+            model.appendRow(accountLoader.newPseudoEntry(securityName));
+            row = model.getRowCount() - 1;
         }
-        createEntryFromPreferences(data, securityName).set(TARGET_COL, getTargetFromPreferenences(accountName, securityName));
+        model.setDouble(row, TARGET_COL, targetStore.getTarget(accountId, securityName));
     }
 
 
     // Listeners:
     //
-    // Checkboxes and spinners
+    // Checkboxes and spinners. Once the plans of the shown positions have been swept, moving one threshold just
+    // looks its plan up; otherwise the plan is recomputed and a sweep started for the moves that follow.
     @Override
     public void stateChanged(ChangeEvent e) {
-        rebalanceTable.dataChanged();
+        if (!applySweptPlan()) {
+            rebalanceTable.dataChanged();
+            startSweep(null);
+        }
         saveThresholdPreferences();
     }
 
+    private boolean applySweptPlan() {
+        if (sweep == null || engine.size() != rebalanceTable.getDataModel().getRowCount()) {
+            return false;
+        }
+        try (Timing.Span ignored = Metrics.REBALANCE.begin()) {
+            RebalancePlan plan = sweep.lookup(engine, policy());
+            if (plan == null) {
+                return false;
+            }
+            engine.restorePlan(plan);
+            RebalanceRows.storeChanges(engine, rebalanceTable.getDataModel());
+        }
+        rebalanceTable.getDataModel().removeTableModelListener(this); // Targets did not change; do not save them
+        fireChanges();
+        rebalanceTable.getDataModel().addTableModelListener(this);
+        return true;
+    }
+
+    // Sweep the thresholds over the spinners' ranges for the shown positions and targets, in the background, then
+    // run whenSwept, if any, with the sweep.
+    private void startSweep(java.util.function.Consumer<ThresholdSweep> whenSwept) {
+        if (sweepWorker != null || rebalanceTable.getFooterModel().getRowCount() == 0) {
+            return;
+        }
+        SpinnerNumberModel percentModel = (SpinnerNumberModel) percentThreshold.getModel();
+        SpinnerNumberModel valueModel = (SpinnerNumberModel) valueThreshold.getModel();
+        ThresholdSweep newSweep = new ThresholdSweep(engine, policy(),
+                ThresholdSweep.grid(((Number) percentModel.getMinimum()).doubleValue(),
+                        ((Number) percentModel.getMaximum()).doubleValue(),
+                        percentModel.getStepSize().doubleValue(), 0.01),
+                ThresholdSweep.grid(((Number) valueModel.getMinimum()).doubleValue(),
+                        ((Number) valueModel.getMaximum()).doubleValue(),
+                        valueModel.getStepSize().doubleValue(), 1.0));
+        sweepWorker = new SwingWorker<ThresholdSweep, Void>() {
+            @Override
+            protected ThresholdSweep doInBackground() {
+                return newSweep.compute(this::isCancelled) ? newSweep : null;
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled() || sweepWorker != this) {
+                    return;
+                }
+                sweepWorker = null;
+                try {
+                    sweep = get();
+                    if (sweep != null && whenSwept != null) {
+                        whenSwept.accept(sweep);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+        };
+        sweepWorker.execute();
+    }
+
+    // The positions or targets changed, so the swept plans no longer apply.
+    private void invalidateSweep() {
+        sweep = null;
+        if (sweepWorker != null) {
+            sweepWorker.cancel(true);
+            sweepWorker = null;
+        }
+    }
+
+    private void showToleranceCurve() {
+        String accountId = (String) accountList.getSelectedItem();
+        java.util.function.Consumer<ThresholdSweep> show =
+                s -> new ThresholdCurveDialog(this, accountCatalog.getLabel(accountId), s).setVisible(true);
+        if (sweep != null && sweep.getPolicy().method == methodList.getSelectedItem()) {
+            show.accept(sweep);
+        } else {
+            invalidateSweep();
+            statusLabel.setText("Sweeping thresholds...");
+            startSweep(s -> {
+                statusLabel.setText(" ");
+                show.accept(s);
+            });
+        }
+    }
+
     // Accounts dropdown
     @Override
     public void itemStateChanged(ItemEvent e) {
         if (e.getStateChange() == ItemEvent.SELECTED) {
-            rebalanceTable.setModel(createRebalanceTableModel((String) accountList.getSelectedItem()));
-            rebalanceTable.getDataModel().addTableModelListener(this);
-            pack();
+            loadSelectedAccount();
         }
     }
 
     // The table
     @Override
     public void tableChanged(TableModelEvent e) {
+        invalidateSweep();
         rebalanceTable.getDataModel().removeTableModelListener(this); // Avoid recursion
-        rebalanceTable.dataChanged(); // Force change event on footer table as well (in case entered directly)
-        rebalance(rebalanceTable.getDataVector(), rebalanceTable.getFooterDataVector());
-        saveAccountPreferences();
+        if (isSingleTargetEdit(e)) {
+            targetChanged(e.getFirstRow());
+        } else {
+            rebalanceTable.dataChanged(); // Force change event on footer table as well (in case entered directly)
+            rebalance(rebalanceTable.getDataModel());
+            saveAccountPreferences();
+        }
         rebalanceTable.getDataModel().addTableModelListener(this);
     }
 
+    // An edit of one Target cell, in a table whose rows the engine already holds.
+    private boolean isSingleTargetEdit(TableModelEvent e) {
+        return e.getType() == TableModelEvent.UPDATE
+                && e.getColumn() == TARGET_COL
+                && e.getFirstRow() == e.getLastRow()
+                && e.getFirstRow() != TableModelEvent.HEADER_ROW
+                && engine.size() == rebalanceTable.getDataModel().getRowCount();
+    }
+
+    // Recompute the plan for a new target and update only the rows whose Buy, Sell, or Result changed.
+    private void targetChanged(int row) {
+        FooterTableModel data = rebalanceTable.getDataModel();
+        double target = targetAt(data, row);
+
+        try (Timing.Span ignored = Metrics.REBALANCE.begin()) {
+            engine.setTarget(row, target);
+            policy().applyTo(engine);
+            engine.rebalance();
+            RebalanceRows.storeChanges(engine, data);
+        }
+        fireChanges();
+
+        targetStore.setTarget((String) accountList.getSelectedItem(), data.getString(row, NAME_COL), target);
+    }
+
+    // Notify the tables of the rows the engine's last plan changed.
+    private void fireChanges() {
+        fireChanges(new BitSet(), false);
+    }
+
+    // Also notify them of other rows whose cells changed, and of the footer if footerChanged.
+    private void fireChanges(BitSet rows, boolean footerChanged) {
+        FooterTableModel model = rebalanceTable.getDataModel();
+        int first = -1;
+        for (int i = 0; i <= model.getRowCount(); i++) {
+            boolean changed = i < model.getRowCount() && (engine.isChanged(i) || rows.get(i));
+            if (changed && first == -1) {
+                first = i;
+            } else if (!changed && first != -1) {
+                model.fireTableRowsUpdated(first, i - 1);
+                first = -1;
+            }
+        }
+        if (footerChanged || engine.isCashChanged()) {
+            FooterTableModel footerModel = rebalanceTable.getFooterModel();
+            footerModel.fireTableRowsUpdated(0, footerModel.getRowCount() - 1);
+        }
+        engine.clearChanges();
+    }
+
+    // Prices: Moneydance changed one or more prices (coalesced by LivePrices). The account is reloaded if a load is
+    // still in progress, since its rows may have read the old prices. Otherwise only the repriced rows, the rows
+    // whose plan changed, and the footer are updated.
+    private void pricesChanged() {
+        if (accountLoadWorker != null) {
+            loadSelectedAccount();
+            return;
+        }
+        String accountId = (String) accountList.getSelectedItem();
+        FooterTableModel data = rebalanceTable.getDataModel();
+        if (accountId == null || data.getFooterModel().getRowCount() == 0) {
+            return;
+        }
+        double totalValue = accountCache.getTotalValue(accountId);
+        invalidateSweep();
+        BitSet repriced = RebalanceRows.reprice(data, livePrices.pricesByName(), totalValue);
+        if (repriced.isEmpty()) {
+            return;
+        }
+        data.removeTableModelListener(this); // Targets did not change; do not save them
+        if (engine.size() == data.getRowCount()) {
+            try (Timing.Span ignored = Metrics.REBALANCE.begin()) {
+                RebalanceRows.reprice(engine, data, repriced, totalValue);
+                policy().applyTo(engine);
+                engine.rebalance();
+                RebalanceRows.storeChanges(engine, data);
+            }
+            fireChanges(repriced, true);
+        } else {
+            rebalance(data, totalValue);
+            rebalanceTable.dataChanged();
+        }
+        data.addTableModelListener(this);
+    }
+
+    private void livePricesChanged() {
+        boolean live = livePricesCheckbox.isSelected();
+        if (live) {
+            livePrices.start();
+            loadSelectedAccount(); // Catch up with prices that changed while stopped
+        } else {
+            livePrices.stop();
+        }
+        preferenceWriter.schedule(RB_PREF + SEP + LIVE, () -> up.setSetting(RB_PREF + SEP + LIVE, live));
+    }
+
+    // The footer: the user may set the cash target.
+    private void footerChanged(TableModelEvent e) {
+        if (e.getType() == TableModelEvent.UPDATE && e.getColumn() == TARGET_COL && e.getFirstRow() == 0) {
+            targetStore.setCashTarget((String) accountList.getSelectedItem(),
+                    targetAt(rebalanceTable.getFooterModel(), 0));
+            rebalanceTable.dataChanged(); // Recompute with the new cash target
+        }
+    }
+
     @Override
     public void processEvent(AWTEvent evt) {
         if (evt.getID() == WindowEvent.WINDOW_CLOSING) {
             saveThresholdPreferences();
             saveAccountPreferences();
-            extension.closeRebalanceWindow();
+            preferenceWriter.flush();
+            extension.hideRebalanceWindow();
             return;
         }
         super.processEvent(evt);
     }
 
+    // Only the first paint after the window was requested is reported, so later repaints skip the extension.
+    @Override
+    public void paint(Graphics g) {
+        super.paint(g);
+        if (firstPaintPending) {
+            firstPaintPending = false;
+            extension.windowPainted();
+        }
+    }
 
-    // Save / restore preferences
-    //
-    private static final String RB_PREF = "ReBalance";
-    private static final String SEP = "%%";
-    private static final String PT_CHECKBOX = "PTCheckbox";
-    private static final String PT_THRESHOLD = "PTThreshold";
-    private static final String VT_CHECKBOX = "VTCheckbox";
-    private static final String VT_THRESHOLD = "VTThreshold";
-    private static final String ACCOUNT = "Account";
-    private static final String SECURITIES = "Securities";
-    private static final String TARGETS = "Targets";
+    void awaitFirstPaint() {
+        firstPaintPending = true;
+    }
 
+    // Show the hidden window again, with the selected account reloaded: balances, prices, and targets may have
+    // changed while it was hidden.
+    void reopen() {
+        if (livePricesCheckbox.isSelected()) {
+            livePrices.start();
+        }
+        loadSelectedAccount();
+        setVisible(true);
+        toFront();
+    }
+
+    void hideWindow() {
+        livePrices.stop();
+        invalidateSweep();
+        if (accountLoadWorker != null) {
+            accountLoadWorker.cancel(true);
+            accountLoadWorker = null;
+        }
+        setVisible(false);
+    }
+
+
+    // Save / restore preferences (the threshold settings are also read by RebalancePolicy.fromPreferences)
+    //
+    static final String RB_PREF = "ReBalance";
+    static final String SEP = "%%";
+    static final String PT_CHECKBOX = "PTCheckbox";
+    static final String PT_THRESHOLD = "PTThreshold";
+    static final double PT_DEFAULT = 1.0;   // 1%
+    static final String VT_CHECKBOX = "VTCheckbox";
+    static final String VT_THRESHOLD = "VTThreshold";
+    static final int VT_DEFAULT = 1000;
+    static final String METHOD = "Method";
+    private static final String LIVE = "LivePrices";
+
+    // Capture the current values here, on the Swing thread; they are written later by the preference writer.
     private void saveThresholdPreferences() {
-        up.setSetting(RB_PREF + SEP + PT_CHECKBOX, percentThresholdCheckbox.isSelected());
-        up.setSetting(RB_PREF + SEP + PT_THRESHOLD, percentThreshold.getValue().toString());
-        up.setSetting(RB_PREF + SEP + VT_CHECKBOX, valueThresholdCheckbox.isSelected());
-        up.setSetting(RB_PREF + SEP + VT_THRESHOLD, valueThreshold.getValue().toString());
+        boolean ptCheckbox = percentThresholdCheckbox.isSelected();
+        String ptThreshold = percentThreshold.getValue().toString();
+        boolean vtCheckbox = valueThresholdCheckbox.isSelected();
+        String vtThreshold = valueThreshold.getValue().toString();
+        String method = ((RebalanceEngine.Method) methodList.getSelectedItem()).name();
+        preferenceWriter.schedule(RB_PREF + SEP + PT_THRESHOLD, () -> {
+            up.setSetting(RB_PREF + SEP + PT_CHECKBOX, ptCheckbox);
+            up.setSetting(RB_PREF + SEP + PT_THRESHOLD, ptThreshold);
+            up.setSetting(RB_PREF + SEP + VT_CHECKBOX, vtCheckbox);
+            up.setSetting(RB_PREF + SEP + VT_THRESHOLD, vtThreshold);
+            up.setSetting(RB_PREF + SEP + METHOD, method);
+        });
     }
 
     private void restoreThresholdPreferences() {
         percentThresholdCheckbox.setSelected(up.getBoolSetting(RB_PREF + SEP + PT_CHECKBOX, false));
-        String defaultThreshold = Double.toString(percentThresholdDefault);
+        String defaultThreshold = Double.toString(PT_DEFAULT);
         percentThreshold.setValue(Double.parseDouble(up.getSetting(RB_PREF + SEP + PT_THRESHOLD, defaultThreshold)));
 
         valueThresholdCheckbox.setSelected(up.getBoolSetting(RB_PREF + SEP + VT_CHECKBOX, false));
-        defaultThreshold = Integer.toString(valueThresholdDefault);
+        defaultThreshold = Integer.toString(VT_DEFAULT);
         valueThreshold.setValue(Integer.parseInt(up.getSetting(RB_PREF + SEP + VT_THRESHOLD, defaultThreshold)));
-    }
-
-    private void saveAccountPreferences() {
-        String accountName = (String) accountList.getSelectedItem();
-        StreamVector securities = new StreamVector();
-        StreamVector targets = new StreamVector();
 
-        for (int i = 0; i < rebalanceTable.getRowCount(); i++) {
-            Vector<Object> entry = rebalanceTable.getDataVector().get(i);
-            securities.add(entry.get(NAME_COL));
-            targets.add(entry.get(TARGET_COL).toString());
+        try {
+            methodList.setSelectedItem(RebalanceEngine.Method.valueOf(
+                    up.getSetting(RB_PREF + SEP + METHOD, RebalanceEngine.Method.GREEDY.name())));
+        } catch (IllegalArgumentException e) {
+            methodList.setSelectedItem(RebalanceEngine.Method.GREEDY);
         }
-        up.setSetting(RB_PREF + SEP + ACCOUNT + SEP + accountName + SEP + SECURITIES, securities);
-        up.setSetting(RB_PREF + SEP + ACCOUNT + SEP + accountName + SEP + TARGETS, targets);
     }
 
-    private Double getTargetFromPreferenences(String accountName, String securityName) {
-        StreamVector securities = new StreamVector();
-        StreamVector targets = new StreamVector();
-        securities = up.getVectorSetting(RB_PREF + SEP + ACCOUNT + SEP + accountName + SEP + SECURITIES, securities);
-        targets = up.getVectorSetting(RB_PREF + SEP + ACCOUNT + SEP + accountName + SEP + TARGETS, targets);
-
-        int index = securities.indexOf(securityName);
-        return index == -1 || targets.get(index) == null ? 0.0 : Double.parseDouble((String) targets.get(index));
-    }
-
-    private StreamVector getSecuritiesFromPreferences(String accountName) {
-        StreamVector securities = new StreamVector();
-        return up.getVectorSetting(RB_PREF + SEP + ACCOUNT + SEP + accountName + SEP + SECURITIES, securities);
+    private void saveAccountPreferences() {
+        String accountId = (String) accountList.getSelectedItem();
+        FooterTableModel data = rebalanceTable.getDataModel();
+        String[] securities = new String[data.getRowCount()];
+        double[] targets = new double[data.getRowCount()];
+
+        for (int i = 0; i < data.getRowCount(); i++) {
+            securities[i] = data.getString(i, NAME_COL);
+            targets[i] = targetAt(data, i);
+        }
+        targetStore.setTargets(accountId, securities, targets);
     }
 
     void goAway() {
+        if (accountLoadWorker != null) {
+            accountLoadWorker.cancel(true);
+        }
+        invalidateSweep();
+        livePrices.stop();
+        preferenceWriter.flush();
+        accountCache.close();
+        accountCatalog.close();
+        lotIndex.close();
         setVisible(false);
         dispose();
     }
@@ -0,0 +1,642 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import java.util.Arrays;
+
+
+// The rebalancing algorithm, independent of the UI. Positions are kept in parallel primitive columns, so a plan
+// can be recomputed without boxing or allocation. Row i of every column describes the same position.
+//
+// Something simple should work.
+// First, find all securities to sell and cash that can be used.
+// Then, compute integer number of shares to buy.
+// Goal: get close to targets, but do not incur unnecessary trading costs (i.e., buy 1 or 2 shares).
+class RebalanceEngine {
+    // How to spend the available funds on new shares
+    enum Method {
+        GREEDY("Greedy"),     // Buy in row order, rounding each purchase down
+        OPTIMAL("Optimal"),   // Minimize the total shortfall with AllocationSolver, keeping the cash target in reserve
+        EXACT("Exact"),       // Like greedy, in fixed point: never overspends, keeps the cash target in reserve
+        EXACT_FRACTIONAL("Exact, fractional shares");  // Exact, trading in the securities' smallest units
+
+        private final String label;
+
+        Method(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+
+        boolean isExact() {
+            return this == EXACT || this == EXACT_FRACTIONAL;
+        }
+
+        // Whether the plan keeps the cash target in reserve (greedy spends all available cash).
+        boolean honorsCashTarget() {
+            return this != GREEDY;
+        }
+    }
+
+    // Exact prices are kept to 1/PRICE_DIGITS of the account currency's smallest unit (e.g. 1/10000 cent).
+    static final long PRICE_DIGITS = 10_000;
+
+    private int size;
+    private double[] target;
+    private double[] actual;
+    private double[] shares;
+    private double[] price;
+    private double[] value;
+    private long[] buy;               // In units of the security (see unitsPerShare)
+    private long[] sell;
+    private double[] result;
+    private long[] unitsPerShare;     // Moneydance's units of a security per share (10^decimal places); default 1
+    private long[] balanceUnits;      // Units of the security held, as Moneydance counts the balance
+
+    // Working columns of the exact methods, in units: security units, currency units, or price units
+    private long[] priceUnits;
+    private long[] valueUnits;
+    private long[] targetUnits;
+
+    // The previous plan, to report which rows a recomputation changed
+    private long[] previousBuy;
+    private long[] previousSell;
+    private double[] previousResult;
+    private boolean[] changed;
+    private boolean cashChanged;
+    private double previousCashBuy;
+    private double previousCashSell;
+    private double previousCashResult;
+    private double previousTotalTarget;
+
+    private double totalValue;
+    private double cash;
+    private double cashTarget;
+    private double cashBuy;
+    private double cashSell;
+    private double cashResult;
+    private double totalTarget;
+    private long cashUnits = 100;     // Units of the account's currency (10^decimal places)
+
+    private double percentLimit = Double.MAX_VALUE;
+    private double valueLimit = Double.MAX_VALUE;
+
+    private Method method = Method.GREEDY;
+    private AllocationSolver solver;
+    private int[] solverRows = new int[16];
+
+    RebalanceEngine() {
+        this(16);
+    }
+
+    RebalanceEngine(int capacity) {
+        capacity = Math.max(capacity, 1);
+        target = new double[capacity];
+        actual = new double[capacity];
+        shares = new double[capacity];
+        price = new double[capacity];
+        value = new double[capacity];
+        buy = new long[capacity];
+        sell = new long[capacity];
+        result = new double[capacity];
+        unitsPerShare = new long[capacity];
+        balanceUnits = new long[capacity];
+        priceUnits = new long[capacity];
+        valueUnits = new long[capacity];
+        targetUnits = new long[capacity];
+        previousBuy = new long[capacity];
+        previousSell = new long[capacity];
+        previousResult = new double[capacity];
+        changed = new boolean[capacity];
+    }
+
+    // Remove all positions, but keep the storage for reuse.
+    void clear() {
+        size = 0;
+        cash = 0.0;
+        cashTarget = 0.0;
+        cashChanged = true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Append a position and return its row.
+    int addPosition(double target, double actual, double shares, double price, double value) {
+        if (size == this.target.length) {
+            grow(size * 2);
+        }
+        int row = size++;
+        this.target[row] = target;
+        this.actual[row] = actual;
+        this.shares[row] = shares;
+        this.price[row] = price;
+        this.value[row] = value;
+        buy[row] = 0;
+        sell[row] = 0;
+        result[row] = actual;
+        unitsPerShare[row] = 1;
+        balanceUnits[row] = Math.round(shares);
+        changed[row] = true;
+        return row;
+    }
+
+    // Moneydance's units per share of the security in this row (10^decimal places), so trades can be expressed,
+    // and for the exact methods computed, in those units.
+    void setUnitsPerShare(int row, long unitsPerShare) {
+        this.unitsPerShare[row] = unitsPerShare;
+        balanceUnits[row] = Math.round(shares[row] * unitsPerShare);
+    }
+
+    // Moneydance's balance of the security in this row, in its units, which the exact methods start from instead
+    // of the share count (call after setUnitsPerShare).
+    void setBalanceUnits(int row, long balanceUnits) {
+        this.balanceUnits[row] = balanceUnits;
+    }
+
+    // Units of the account's currency (10^decimal places), for the exact methods.
+    void setCashUnits(long cashUnits) {
+        this.cashUnits = cashUnits;
+    }
+
+    private void grow(int capacity) {
+        target = Arrays.copyOf(target, capacity);
+        actual = Arrays.copyOf(actual, capacity);
+        shares = Arrays.copyOf(shares, capacity);
+        price = Arrays.copyOf(price, capacity);
+        value = Arrays.copyOf(value, capacity);
+        buy = Arrays.copyOf(buy, capacity);
+        sell = Arrays.copyOf(sell, capacity);
+        result = Arrays.copyOf(result, capacity);
+        unitsPerShare = Arrays.copyOf(unitsPerShare, capacity);
+        balanceUnits = Arrays.copyOf(balanceUnits, capacity);
+        priceUnits = Arrays.copyOf(priceUnits, capacity);
+        valueUnits = Arrays.copyOf(valueUnits, capacity);
+        targetUnits = Arrays.copyOf(targetUnits, capacity);
+        previousBuy = Arrays.copyOf(previousBuy, capacity);
+        previousSell = Arrays.copyOf(previousSell, capacity);
+        previousResult = Arrays.copyOf(previousResult, capacity);
+        changed = Arrays.copyOf(changed, capacity);
+    }
+
+    void setTotalValue(double totalValue) {
+        this.totalValue = totalValue;
+    }
+
+    void setCash(double cash, double cashTarget) {
+        this.cash = cash;
+        this.cashTarget = cashTarget;
+    }
+
+    void setTarget(int row, double target) {
+        this.target[row] = target;
+        changed[row] = true;
+    }
+
+    // A position after a price change. Whether its plan changed is reported by the next rebalance.
+    void setPrice(int row, double actual, double price, double value) {
+        this.actual[row] = actual;
+        this.price[row] = price;
+        this.value[row] = value;
+    }
+
+    void setMethod(Method method) {
+        this.method = method;
+    }
+
+    Method getMethod() {
+        return method;
+    }
+
+    // A limit of Double.MAX_VALUE disables that threshold. Limits are fractions (e.g. 0.01 for 1%) and values.
+    void setThresholds(double percentLimit, double valueLimit) {
+        this.percentLimit = percentLimit;
+        this.valueLimit = valueLimit;
+    }
+
+    // An independent engine with the same positions, settings, and plan, e.g. to compute other plans on another
+    // thread.
+    RebalanceEngine copy() {
+        RebalanceEngine copy = new RebalanceEngine(size);
+        for (int i = 0; i < size; i++) {
+            copy.addPosition(target[i], actual[i], shares[i], price[i], value[i]);
+            copy.unitsPerShare[i] = unitsPerShare[i];
+            copy.balanceUnits[i] = balanceUnits[i];
+        }
+        copy.restorePlan(savePlan());
+        copy.totalValue = totalValue;
+        copy.cash = cash;
+        copy.cashTarget = cashTarget;
+        copy.cashUnits = cashUnits;
+        copy.percentLimit = percentLimit;
+        copy.valueLimit = valueLimit;
+        copy.method = method;
+        return copy;
+    }
+
+    // Number of rows far enough from their targets, under the current thresholds, to trade. The thresholds affect
+    // a plan only through which rows these are, and raising one threshold only removes rows, so two settings of
+    // one threshold (the other fixed) with the same count have the same plan.
+    int countEligible() {
+        int count = 0;
+        if (method.isExact()) {
+            long totalUnits = Math.round(totalValue * cashUnits);
+            double perTotal = 1.0 / totalUnits;
+            double perCashUnit = 1.0 / cashUnits;
+            for (int i = 0; i < size; i++) {
+                long error = Math.abs(Math.round(value[i] * cashUnits) - Math.round(target[i] * totalUnits));
+                if (error > 0 && exceedsALimit(error * perTotal, error * perCashUnit)) {
+                    count++;
+                }
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                double targetError = Math.abs(actual[i] - target[i]);
+                if (targetError > 0.0 && exceedsALimit(targetError, targetError * totalValue)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    RebalancePlan savePlan() {
+        int trades = 0;
+        double drift = Math.abs(cashResult - cashTarget);
+        for (int i = 0; i < size; i++) {
+            if (buy[i] != 0 || sell[i] != 0) {
+                trades++;
+            }
+            drift += Math.abs(result[i] - target[i]);
+        }
+        return new RebalancePlan(Arrays.copyOf(buy, size), Arrays.copyOf(sell, size), Arrays.copyOf(result, size),
+                cashBuy, cashSell, cashResult, totalTarget, trades, drift);
+    }
+
+    // Adopt a plan saved from this engine, or from a copy with the same positions, as if rebalance had computed it.
+    void restorePlan(RebalancePlan plan) {
+        startPlan();
+        System.arraycopy(plan.buy, 0, buy, 0, size);
+        System.arraycopy(plan.sell, 0, sell, 0, size);
+        System.arraycopy(plan.result, 0, result, 0, size);
+        cashBuy = plan.cashBuy;
+        cashSell = plan.cashSell;
+        cashResult = plan.cashResult;
+        totalTarget = plan.totalTarget;
+        finishPlan();
+    }
+
+    // Remember the current plan, so that finishPlan can report the rows a new plan changes.
+    private void startPlan() {
+        System.arraycopy(buy, 0, previousBuy, 0, size);
+        System.arraycopy(sell, 0, previousSell, 0, size);
+        System.arraycopy(result, 0, previousResult, 0, size);
+        previousCashBuy = cashBuy;
+        previousCashSell = cashSell;
+        previousCashResult = cashResult;
+        previousTotalTarget = totalTarget;
+    }
+
+    private void finishPlan() {
+        for (int i = 0; i < size; i++) {
+            changed[i] |= buy[i] != previousBuy[i] || sell[i] != previousSell[i] || result[i] != previousResult[i];
+        }
+        cashChanged |= cashBuy != previousCashBuy || cashSell != previousCashSell || cashResult != previousCashResult
+                || totalTarget != previousTotalTarget;
+    }
+
+    // Recompute the plan. Afterwards, isChanged and isCashChanged report which rows differ from the previous plan.
+    void rebalance() {
+        startPlan();
+
+        double availableFunds = cash;
+        double sumOfTargets = 0.0;
+        for (int i = 0; i < size; i++) {
+            buy[i] = 0;
+            sell[i] = 0;
+            result[i] = actual[i];
+            sumOfTargets += target[i];
+        }
+
+        if (method.isExact()) {
+            availableFunds = rebalanceExactly();
+        } else {
+            // Sell excess shares
+            for (int i = 0; i < size; i++) {
+                availableFunds += extractExcessValue(i);
+            }
+
+            // Spend funds on new shares
+            if (method == Method.OPTIMAL) {
+                availableFunds -= useExcessValueOptimally(availableFunds);
+            } else {
+                for (int i = 0; i < size; i++) {
+                    availableFunds -= useExcessValue(i, availableFunds);
+                }
+            }
+        }
+
+        // Adjust cash
+        cashBuy = 0.0;
+        cashSell = 0.0;
+        if (cash != availableFunds) {
+            if (cash > availableFunds) {
+                cashSell = cash - availableFunds;
+            } else {
+                cashBuy = availableFunds - cash;
+            }
+        }
+        cashResult = availableFunds / totalValue;
+        totalTarget = sumOfTargets + cashTarget;
+        finishPlan();
+    }
+
+    boolean isChanged(int row) {
+        return changed[row];
+    }
+
+    boolean isCashChanged() {
+        return cashChanged;
+    }
+
+    // Call once the changes have been applied (e.g. to the table).
+    void clearChanges() {
+        Arrays.fill(changed, 0, size, false);
+        cashChanged = false;
+    }
+
+    // Find excess value of securities that exceed target by appropriate amount (either % or magnitude).
+    // Return amount of sale.
+    private double extractExcessValue(int i) {
+        double targetError = actual[i] - target[i];
+
+        if (targetError > 0.0) {
+            double valueError = targetError * totalValue;
+            double sharesToSell = Math.floor(valueError / price[i]);
+            if (sharesToSell > 0.0 && exceedsALimit(targetError, valueError)) {
+                sell[i] = (long) sharesToSell * unitsPerShare[i];
+                result[i] = (shares[i] - sharesToSell) * price[i] / totalValue;
+                return sharesToSell * price[i];
+            }
+        }
+        return 0.0;
+    }
+
+    // Return amount of purchase.
+    private double useExcessValue(int i, double availableFunds) {
+        double targetError = target[i] - actual[i];
+
+        if (availableFunds > 0.0 && targetError > 0.0) {
+            double valueError = targetError * totalValue;
+            double sharesToBuy = Math.floor(valueError / price[i]);
+            if (sharesToBuy > 0.0 && exceedsALimit(targetError, valueError)) {
+                buy[i] = (long) sharesToBuy * unitsPerShare[i];
+                result[i] = (shares[i] + sharesToBuy) * price[i] / totalValue;
+                return sharesToBuy * price[i];
+            }
+        }
+        return 0.0;
+    }
+
+    // Choose the purchases with the solver, starting from the greedy choice. Positions within the thresholds are
+    // not bought, as with the greedy method, and the cash target is held back from the funds. The greedy choice is
+    // made within those funds, so the solver's plan, even if it runs out of time, fits them and is never worse than
+    // the greedy one. Returns the amount spent.
+    private double useExcessValueOptimally(double availableFunds) {
+        if (solver == null) {
+            solver = new AllocationSolver();
+        }
+        solver.clear();
+        double funds = Math.max(0.0, availableFunds - cashTarget * totalValue);
+        int items = 0;
+        double greedyFunds = funds;
+        for (int i = 0; i < size; i++) {
+            double targetError = target[i] - actual[i];
+            double valueError = targetError * totalValue;
+            if (targetError > 0.0 && price[i] > 0.0 && exceedsALimit(targetError, valueError)) {
+                if (items == solverRows.length) {
+                    solverRows = Arrays.copyOf(solverRows, items * 2);
+                }
+                solverRows[items] = i;
+                solver.addItem(valueError, price[i]);
+                long greedyShares = Math.max(0, (long) Math.floor(Math.min(valueError, greedyFunds) / price[i]));
+                solver.setShares(items, greedyShares);
+                greedyFunds -= greedyShares * price[i];
+                items++;
+            }
+        }
+
+        solver.solve(funds);
+
+        double spent = 0.0;
+        for (int item = 0; item < items; item++) {
+            int i = solverRows[item];
+            long sharesToBuy = solver.getShares(item);
+            if (sharesToBuy > 0) {
+                buy[i] = sharesToBuy * unitsPerShare[i];
+                result[i] = (shares[i] + sharesToBuy) * price[i] / totalValue;
+                spent += sharesToBuy * price[i];
+            }
+        }
+        return spent;
+    }
+
+    private boolean exceedsALimit(double targetError, double valueError) {
+        return targetError > percentLimit || valueError > valueLimit;
+    }
+
+    // The exact methods. Holdings are Moneydance's balances in units of each security, and a position's value is
+    // computed from its balance in integer units of the account's currency, at the row's price in price units
+    // (Moneydance keeps prices as floating-point rates, so that is the one conversion). Cash and the total value
+    // are the account's balances, whole currency units, so scaling them back up recovers them exactly. A trade's
+    // cost is the value of the shares it moves, in currency units, and exactly that is moved between the position
+    // and cash, so positions and cash always add up to the same total and a Result is the value held after the
+    // trades. Sells are whole shares, or single units for EXACT_FRACTIONAL. Buys are made in row order with the
+    // funds above the cash target, and never overspend. Returns the cash after the trades.
+    private double rebalanceExactly() {
+        long totalUnits = Math.round(totalValue * cashUnits);
+        double perTotal = 1.0 / totalUnits;
+        double perCashUnit = 1.0 / cashUnits;
+        long funds = Math.round(cash * cashUnits);
+
+        // Sell excess shares
+        for (int i = 0; i < size; i++) {
+            boolean priced = setPriceUnits(i);
+            valueUnits[i] = priced ? valueOf(balanceUnits[i], i) : 0;
+            targetUnits[i] = Math.round(target[i] * totalUnits);
+            long excess = valueUnits[i] - targetUnits[i];
+            if (excess > 0 && exceedsALimit(excess * perTotal, excess * perCashUnit) && priced) {
+                long unitsToSell = Math.min(unitsFor(excess, i), balanceUnits[i]);
+                if (unitsToSell > 0) {
+                    long proceeds = valueOf(unitsToSell, i);
+                    sell[i] = unitsToSell;
+                    funds += proceeds;
+                    valueUnits[i] -= proceeds;
+                }
+            }
+            result[i] = valueUnits[i] * perTotal;
+        }
+
+        // Spend funds above the cash target on new shares
+        long reserve = Math.round(cashTarget * totalUnits);
+        for (int i = 0; i < size; i++) {
+            long shortfall = targetUnits[i] - valueUnits[i];
+            long spendable = funds - reserve;
+            if (shortfall > 0 && spendable > 0 && exceedsALimit(shortfall * perTotal, shortfall * perCashUnit)
+                    && priceUnits[i] > 0) {
+                long unitsToBuy = unitsFor(Math.min(shortfall, spendable), i);
+                if (unitsToBuy > 0) {
+                    long cost = valueOf(unitsToBuy, i);
+                    buy[i] = unitsToBuy;
+                    funds -= cost;
+                    valueUnits[i] += cost;
+                    result[i] = valueUnits[i] * perTotal;
+                }
+            }
+        }
+        return (double) funds / cashUnits;
+    }
+
+    // Returns whether the security has a price.
+    private boolean setPriceUnits(int i) {
+        priceUnits[i] = Math.round(price[i] * cashUnits * PRICE_DIGITS);
+        return priceUnits[i] > 0;
+    }
+
+    // Value, in currency units rounded down, of a number of units of the security in row i. Whole shares and the
+    // fraction of a share are priced separately, so the products fit in a long. Rounding down means that the
+    // units that amount buys (see unitsFor) never cost more than amount.
+    private long valueOf(long securityUnits, int i) {
+        long perShare = unitsPerShare[i];
+        long wholeShares = securityUnits / perShare;
+        long fraction = securityUnits - wholeShares * perShare;
+        long value = wholeShares * priceUnits[i];
+        if (fraction != 0) {
+            value += multiplyDivide(fraction, priceUnits[i], perShare);
+        }
+        return value / PRICE_DIGITS;
+    }
+
+    // a * b / c, for a < c. The product overflows only for very fine units of very expensive securities (e.g. a
+    // cryptocurrency with 8 decimal places); those are computed in floating point, which is off by at most a unit.
+    private static long multiplyDivide(long a, long b, long c) {
+        try {
+            return Math.multiplyExact(a, b) / c;
+        } catch (ArithmeticException e) {
+            return (long) ((double) a * b / c);
+        }
+    }
+
+    // The most units of the security in row i, whole shares unless EXACT_FRACTIONAL, that amount currency units buy.
+    private long unitsFor(long amount, int i) {
+        long scaledAmount = amount * PRICE_DIGITS;
+        long wholeShares = scaledAmount / priceUnits[i];
+        if (method != Method.EXACT_FRACTIONAL) {
+            return wholeShares * unitsPerShare[i];
+        }
+        long fraction = multiplyDivide(scaledAmount - wholeShares * priceUnits[i], unitsPerShare[i], priceUnits[i]);
+        return wholeShares * unitsPerShare[i] + fraction;
+    }
+
+
+    // Accessors for the computed plan.
+    //
+    double getTarget(int row) {
+        return target[row];
+    }
+
+    double getActual(int row) {
+        return actual[row];
+    }
+
+    double getShares(int row) {
+        return shares[row];
+    }
+
+    double getPrice(int row) {
+        return price[row];
+    }
+
+    double getValue(int row) {
+        return value[row];
+    }
+
+    // Whole shares to buy (all that is bought, except with EXACT_FRACTIONAL)
+    long getBuy(int row) {
+        return buy[row] / unitsPerShare[row];
+    }
+
+    long getSell(int row) {
+        return sell[row] / unitsPerShare[row];
+    }
+
+    double getBuyShares(int row) {
+        return (double) buy[row] / unitsPerShare[row];
+    }
+
+    double getSellShares(int row) {
+        return (double) sell[row] / unitsPerShare[row];
+    }
+
+    double getResult(int row) {
+        return result[row];
+    }
+
+    double getTotalValue() {
+        return totalValue;
+    }
+
+    double getCash() {
+        return cash;
+    }
+
+    double getCashBuy() {
+        return cashBuy;
+    }
+
+    double getCashSell() {
+        return cashSell;
+    }
+
+    double getCashResult() {
+        return cashResult;
+    }
+
+    double getTotalTarget() {
+        return totalTarget;
+    }
+}
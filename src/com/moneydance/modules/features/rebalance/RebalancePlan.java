@@ -0,0 +1,62 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+
+// A plan computed by RebalanceEngine, saved so that the engine can adopt it again later, with its number of
+// trades and its residual drift: the sum of the distances of the positions and cash from their targets after the
+// trades.
+final class RebalancePlan {
+    final long[] buy;
+    final long[] sell;
+    final double[] result;
+    final double cashBuy;
+    final double cashSell;
+    final double cashResult;
+    final double totalTarget;
+    final int trades;
+    final double drift;
+
+    RebalancePlan(long[] buy, long[] sell, double[] result, double cashBuy, double cashSell, double cashResult,
+                  double totalTarget, int trades, double drift) {
+        this.buy = buy;
+        this.sell = sell;
+        this.result = result;
+        this.cashBuy = cashBuy;
+        this.cashSell = cashSell;
+        this.cashResult = cashResult;
+        this.totalTarget = totalTarget;
+        this.trades = trades;
+        this.drift = drift;
+    }
+}
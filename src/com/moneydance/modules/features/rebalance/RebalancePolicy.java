@@ -0,0 +1,76 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import com.moneydance.apps.md.controller.UserPreferences;
+
+import static com.moneydance.modules.features.rebalance.ReBalanceWindow.*;
+
+
+// The settings that determine a plan besides the positions and targets: the thresholds and the method used to
+// spend funds. Immutable, so it can be captured on the Swing thread and used on any other.
+final class RebalancePolicy {
+    final double percentLimit;    // Fraction (e.g. 0.01 for 1%), or Double.MAX_VALUE when disabled
+    final double valueLimit;      // Value, or Double.MAX_VALUE when disabled
+    final RebalanceEngine.Method method;
+
+    RebalancePolicy(double percentLimit, double valueLimit, RebalanceEngine.Method method) {
+        this.percentLimit = percentLimit;
+        this.valueLimit = valueLimit;
+        this.method = method;
+    }
+
+    // The settings last saved by the window, for use without it. (The keys are constants, so this does not load
+    // the window's class.)
+    static RebalancePolicy fromPreferences(UserPreferences up) {
+        double percentLimit = up.getBoolSetting(RB_PREF + SEP + PT_CHECKBOX, false)
+                ? Double.parseDouble(up.getSetting(RB_PREF + SEP + PT_THRESHOLD, Double.toString(PT_DEFAULT))) / 100.0
+                : Double.MAX_VALUE;
+        double valueLimit = up.getBoolSetting(RB_PREF + SEP + VT_CHECKBOX, false)
+                ? Integer.parseInt(up.getSetting(RB_PREF + SEP + VT_THRESHOLD, Integer.toString(VT_DEFAULT)))
+                : Double.MAX_VALUE;
+        RebalanceEngine.Method method;
+        try {
+            method = RebalanceEngine.Method.valueOf(
+                    up.getSetting(RB_PREF + SEP + METHOD, RebalanceEngine.Method.GREEDY.name()));
+        } catch (IllegalArgumentException e) {
+            method = RebalanceEngine.Method.GREEDY;
+        }
+        return new RebalancePolicy(percentLimit, valueLimit, method);
+    }
+
+    void applyTo(RebalanceEngine engine) {
+        engine.setThresholds(percentLimit, valueLimit);
+        engine.setMethod(method);
+    }
+}
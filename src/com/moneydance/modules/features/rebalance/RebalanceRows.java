@@ -0,0 +1,288 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Vector;
+
+
+// Layout of the rebalance table's rows, and the conversion between those rows and a RebalanceEngine.
+// Body rows are securities. The footer holds the cash row (if the account has cash) followed by the total row.
+// The loaders build the rows as vectors; the table shown keeps them in a FooterTableModel's columns.
+final class RebalanceRows {
+    static final String[] NAMES
+            = {"Name", "Symbol", "Target", "Actual", "Shares", "Price", "Value", "Buy", "Sell", "Result"};
+    static final String[] TYPES
+            = {"Text", "Text", "Percent", "Percent", "Shares", "Currency2", "Currency2", "Shares", "Shares", "Percent"};
+    static final int NAME_COL = 0;
+    static final int SYMBOL_COL = 1;
+    static final int TARGET_COL = 2;
+    static final int ACTUAL_COL = 3;
+    static final int SHARE_COL = 4;
+    static final int PRICE_COL = 5;
+    static final int VALUE_COL = 6;
+    static final int BUY_COL = 7;
+    static final int SELL_COL = 8;
+    static final int RESULT_COL = 9;
+
+    private RebalanceRows() {
+    }
+
+    static Vector<String> columnNames() {
+        return new Vector<>(Arrays.asList(NAMES));
+    }
+
+    static Vector<String> columnTypes() {
+        return new Vector<>(Arrays.asList(TYPES));
+    }
+
+    static Vector<Object> createEntry(Vector<Vector<Object>> entries, String name, String symbol, Double target,
+                                      Double actual, Double shares, Double price, Double value) {
+        Vector<Object> entry = newEntry(name, symbol, target, actual, shares, price, value);
+        entries.add(entry);
+        return entry;
+    }
+
+    static Vector<Object> newEntry(String name, String symbol, Double target, Double actual, Double shares,
+                                   Double price, Double value) {
+        Vector<Object> entry = new Vector<>(NAMES.length);
+        entry.add(name);
+        entry.add(symbol);
+        entry.add(target);
+        entry.add(actual);
+        entry.add(shares);
+        entry.add(price);
+        entry.add(value);
+        entry.add(0.0);   // calc at end
+        entry.add(0.0);   // calc at end
+        entry.add(0.0);   // calc at end
+        return entry;
+    }
+
+    static Vector<Object> createTotalEntry(Vector<Vector<Object>> footer, Double totalValue) {
+        Vector<Object> totals = new Vector<>(NAMES.length);
+        totals.add("Total");
+        totals.add(null);
+        totals.add(null);
+        totals.add(null);
+        totals.add(null);
+        totals.add(null);
+        totals.add(totalValue);
+        totals.add(null);
+        totals.add(null);
+        totals.add(null);
+        footer.add(totals);
+        return totals;
+    }
+
+    // Update the rows whose security's price changed, and every row's share of the account's new total value.
+    // Returns the rows whose Price, Value, or Actual changed, which is empty if no price changed. If any did, the
+    // footer's Actual and Value changed too.
+    static BitSet reprice(FooterTableModel data, Map<String, Double> prices, double totalValue) {
+        FooterTableModel footer = data.getFooterModel();
+        BitSet changed = new BitSet(data.getRowCount());
+        for (int i = 0; i < data.getRowCount(); i++) {
+            Double price = prices.get(data.getString(i, NAME_COL));
+            if (price != null && price != data.getDouble(i, PRICE_COL)) {
+                data.setDouble(i, PRICE_COL, price);
+                data.setDouble(i, VALUE_COL, doubleAt(data, i, SHARE_COL) * price);
+                changed.set(i);
+            }
+        }
+        if (!changed.isEmpty()) {
+            for (int i = 0; i < data.getRowCount(); i++) {
+                double actual = doubleAt(data, i, VALUE_COL) / totalValue;
+                if (actual != data.getDouble(i, ACTUAL_COL)) {
+                    data.setDouble(i, ACTUAL_COL, actual);
+                    changed.set(i);
+                }
+            }
+            if (footer.getRowCount() > 1) {
+                footer.setDouble(0, ACTUAL_COL, doubleAt(footer, 0, VALUE_COL) / totalValue);
+            }
+            footer.setDouble(footer.getRowCount() - 1, VALUE_COL, totalValue);
+        }
+        return changed;
+    }
+
+    // Copy the repriced rows into an engine that already holds the table's rows, so that a rebalance reports only
+    // the rows whose plan the new prices changed.
+    static void reprice(RebalanceEngine engine, FooterTableModel data, BitSet rows, double totalValue) {
+        engine.setTotalValue(totalValue);
+        for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+            engine.setPrice(i, doubleAt(data, i, ACTUAL_COL), doubleAt(data, i, PRICE_COL),
+                    doubleAt(data, i, VALUE_COL));
+        }
+    }
+
+    // Copy the rows into the engine, compute a plan, and copy the plan back into the Buy, Sell, and Result columns.
+    static void rebalance(RebalanceEngine engine, Vector<Vector<Object>> data, Vector<Vector<Object>> footer,
+                          double totalValue) {
+        rebalance(engine, data, footer, totalValue, null);
+    }
+
+    static void rebalance(RebalanceEngine engine, Vector<Vector<Object>> data, Vector<Vector<Object>> footer,
+                          double totalValue, CurrencyScales scales) {
+        try (Timing.Span ignored = Metrics.REBALANCE.begin()) {
+            load(engine, data, footer, totalValue, scales);
+            engine.rebalance();
+            store(engine, data, footer);
+        }
+    }
+
+    static void rebalance(RebalanceEngine engine, FooterTableModel data, double totalValue, CurrencyScales scales) {
+        try (Timing.Span ignored = Metrics.REBALANCE.begin()) {
+            load(engine, data, totalValue, scales);
+            engine.rebalance();
+            store(engine, data);
+        }
+    }
+
+    static void load(RebalanceEngine engine, Vector<Vector<Object>> data, Vector<Vector<Object>> footer,
+                     double totalValue) {
+        load(engine, data, footer, totalValue, null);
+    }
+
+    // Without scales, shares are whole and the currency has two decimal places.
+    static void load(RebalanceEngine engine, Vector<Vector<Object>> data, Vector<Vector<Object>> footer,
+                     double totalValue, CurrencyScales scales) {
+        engine.clear();
+        engine.setTotalValue(totalValue);
+        for (Vector<Object> entry : data) {
+            int row = engine.addPosition(doubleAt(entry, TARGET_COL), doubleAt(entry, ACTUAL_COL),
+                    doubleAt(entry, SHARE_COL), doubleAt(entry, PRICE_COL), doubleAt(entry, VALUE_COL));
+            if (scales != null) {
+                setUnits(engine, row, (String) entry.get(NAME_COL), scales);
+            }
+        }
+        engine.setCashUnits(scales == null ? 100 : scales.getCashUnits());
+        Vector<Object> cashEntry = footer.get(0);
+        engine.setCash(doubleAt(cashEntry, VALUE_COL), doubleAt(cashEntry, TARGET_COL));
+    }
+
+    static void load(RebalanceEngine engine, FooterTableModel data, double totalValue, CurrencyScales scales) {
+        engine.clear();
+        engine.setTotalValue(totalValue);
+        for (int i = 0; i < data.getRowCount(); i++) {
+            int row = engine.addPosition(doubleAt(data, i, TARGET_COL), doubleAt(data, i, ACTUAL_COL),
+                    doubleAt(data, i, SHARE_COL), doubleAt(data, i, PRICE_COL), doubleAt(data, i, VALUE_COL));
+            if (scales != null) {
+                setUnits(engine, row, data.getString(i, NAME_COL), scales);
+            }
+        }
+        engine.setCashUnits(scales == null ? 100 : scales.getCashUnits());
+        FooterTableModel footer = data.getFooterModel();
+        engine.setCash(doubleAt(footer, 0, VALUE_COL), doubleAt(footer, 0, TARGET_COL));
+    }
+
+    private static void setUnits(RebalanceEngine engine, int row, String securityName, CurrencyScales scales) {
+        engine.setUnitsPerShare(row, scales.unitsPerShare(securityName));
+        Long balance = scales.getBalance(securityName);
+        if (balance != null) {
+            engine.setBalanceUnits(row, balance);
+        }
+    }
+
+    static void store(RebalanceEngine engine, Vector<Vector<Object>> data, Vector<Vector<Object>> footer) {
+        for (int i = 0; i < data.size(); i++) {
+            storeRow(engine, data.get(i), i);
+        }
+        storeFooter(engine, footer);
+        engine.clearChanges();
+    }
+
+    // Copy every row's plan into the model, and clear the engine's changes: the caller redraws the whole table.
+    static void store(RebalanceEngine engine, FooterTableModel data) {
+        for (int i = 0; i < data.getRowCount(); i++) {
+            storeRow(engine, data, i);
+        }
+        storeFooter(engine, data.getFooterModel());
+        engine.clearChanges();
+    }
+
+    // Copy only the rows the last rebalance changed. The caller clears the engine's changes once it has
+    // notified the table.
+    static void storeChanges(RebalanceEngine engine, FooterTableModel data) {
+        for (int i = 0; i < data.getRowCount(); i++) {
+            if (engine.isChanged(i)) {
+                storeRow(engine, data, i);
+            }
+        }
+        if (engine.isCashChanged()) {
+            storeFooter(engine, data.getFooterModel());
+        }
+    }
+
+    private static void storeRow(RebalanceEngine engine, Vector<Object> entry, int i) {
+        entry.set(BUY_COL, engine.getBuyShares(i) == 0.0 ? null : engine.getBuyShares(i));
+        entry.set(SELL_COL, engine.getSellShares(i) == 0.0 ? null : engine.getSellShares(i));
+        entry.set(RESULT_COL, engine.getResult(i));
+    }
+
+    // Empty cells are NaN in a model.
+    private static void storeRow(RebalanceEngine engine, FooterTableModel data, int i) {
+        data.setDouble(i, BUY_COL, engine.getBuyShares(i) == 0.0 ? Double.NaN : engine.getBuyShares(i));
+        data.setDouble(i, SELL_COL, engine.getSellShares(i) == 0.0 ? Double.NaN : engine.getSellShares(i));
+        data.setDouble(i, RESULT_COL, engine.getResult(i));
+    }
+
+    private static void storeFooter(RebalanceEngine engine, FooterTableModel footer) {
+        footer.setDouble(0, BUY_COL, engine.getCashBuy() == 0.0 ? Double.NaN : engine.getCashBuy());
+        footer.setDouble(0, SELL_COL, engine.getCashSell() == 0.0 ? Double.NaN : engine.getCashSell());
+        footer.setDouble(0, RESULT_COL, engine.getCashResult());
+
+        footer.setDouble(footer.getRowCount() - 1, TARGET_COL, engine.getTotalTarget());
+    }
+
+    private static void storeFooter(RebalanceEngine engine, Vector<Vector<Object>> footer) {
+        Vector<Object> cashEntry = footer.get(0);
+        cashEntry.set(BUY_COL, engine.getCashBuy() == 0.0 ? null : engine.getCashBuy());
+        cashEntry.set(SELL_COL, engine.getCashSell() == 0.0 ? null : engine.getCashSell());
+        cashEntry.set(RESULT_COL, engine.getCashResult());
+
+        footer.get(footer.size() - 1).set(TARGET_COL, engine.getTotalTarget());
+    }
+
+    // Empty cells (e.g. a target cleared by Copy Targets) count as zero.
+    private static double doubleAt(Vector<Object> entry, int col) {
+        Object value = entry.get(col);
+        return value == null ? 0.0 : (Double) value;
+    }
+
+    private static double doubleAt(FooterTableModel data, int row, int col) {
+        double value = data.getDouble(row, col);
+        return Double.isNaN(value) ? 0.0 : value;
+    }
+}
@@ -0,0 +1,318 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+
+// Read targets for many accounts from a file, in the format PlanExporter writes (CSV with a header row, or a JSON
+// array of objects), and apply them with one change per account. Records need account, name (or security), and
+// target, a percentage; other fields are ignored, so an exported plan with edited targets can be imported. An
+// empty target is zero. Securities an account already has but the file does not mention keep their targets.
+final class TargetImporter {
+    private final Map<String, Map<String, Double>> targetsByAccount = new LinkedHashMap<>();
+    private int records;
+    private int applied;
+    private final List<String> rejectedAccounts = new ArrayList<>();
+    private Reader in;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+
+    void read(Reader in, PlanExporter.Format format) throws IOException {
+        this.in = in;
+        position = 0;
+        limit = 0;
+        if (format == PlanExporter.Format.CSV) {
+            readCsv();
+        } else {
+            readJson();
+        }
+    }
+
+    // The next character, or -1 at the end. Reading through a buffer here, rather than a BufferedReader, avoids
+    // a lock per character.
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+
+    // Apply the targets read so far, one account at a time (e.g. with TargetStore.mergeTargets, so that each
+    // account's targets are written once). findAccount gives the ID of the account a file names (e.g. with
+    // AccountCatalog.findAccount), or null; the targets of accounts it cannot find are rejected, not applied.
+    // Returns the IDs of the accounts changed.
+    List<String> applyTo(Function<String, String> findAccount, BiConsumer<String, Map<String, Double>> merge) {
+        List<String> accountIds = new ArrayList<>(targetsByAccount.size());
+        for (Map.Entry<String, Map<String, Double>> account : targetsByAccount.entrySet()) {
+            String accountId = findAccount.apply(account.getKey());
+            if (accountId == null) {
+                rejectedAccounts.add(account.getKey());
+            } else {
+                merge.accept(accountId, account.getValue());
+                accountIds.add(accountId);
+                applied += account.getValue().size();
+            }
+        }
+        targetsByAccount.clear();
+        return accountIds;
+    }
+
+    // Records read.
+    int getRecordCount() {
+        return records;
+    }
+
+    // Targets applied, i.e. not rejected or repeated.
+    int getAppliedCount() {
+        return applied;
+    }
+
+    // The account names (in the file) that applyTo could not find.
+    List<String> getRejectedAccounts() {
+        return Collections.unmodifiableList(rejectedAccounts);
+    }
+
+    private void add(Map<String, String> record, int line) throws IOException {
+        String account = record.get("account");
+        String security = record.containsKey("name") ? record.get("name") : record.get("security");
+        String target = record.get("target");
+        if (account == null || account.isEmpty() || security == null || security.isEmpty()) {
+            throw new IOException("Record " + line + ": account and name are required");
+        }
+        double value = 0.0;
+        if (target != null && !target.trim().isEmpty()) {
+            String number = target.trim();
+            if (number.endsWith("%")) {
+                number = number.substring(0, number.length() - 1).trim();
+            }
+            try {
+                value = Double.parseDouble(number) / 100.0;
+            } catch (NumberFormatException e) {
+                throw new IOException("Record " + line + ": target " + target + " is not a number");
+            }
+        }
+        targetsByAccount.computeIfAbsent(account, a -> new LinkedHashMap<>()).put(security, value);
+        records++;
+    }
+
+    // RFC 4180: fields separated by commas, optionally quoted, with "" for a quote within quotes.
+    private void readCsv() throws IOException {
+        List<String> header = null;
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        int line = 0;
+        boolean quoted = false;
+        boolean atEnd = false;
+        int next = -2;      // A character read ahead, if not -2
+        while (!atEnd) {
+            int c = next != -2 ? next : read();
+            next = -2;
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Record " + (line + 1) + ": unterminated quote");
+                } else if (c == '"') {
+                    next = read();
+                    if (next == '"') {
+                        field.append('"');
+                        next = -2;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n' || c == -1) {
+                atEnd = c == -1;
+                if (field.length() > 0 || !fields.isEmpty()) {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                    if (header == null) {
+                        header = new ArrayList<>();
+                        for (String name : fields) {
+                            header.add(name.trim().toLowerCase());
+                        }
+                    } else {
+                        Map<String, String> record = new HashMap<>();
+                        for (int i = 0; i < header.size() && i < fields.size(); i++) {
+                            record.put(header.get(i), fields.get(i));
+                        }
+                        add(record, line);
+                    }
+                    line++;
+                    fields.clear();
+                }
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+        }
+    }
+
+    // An array of flat objects whose values are strings, numbers, booleans, or null.
+    private void readJson() throws IOException {
+        JsonTokens tokens = new JsonTokens();
+        tokens.expect('[');
+        int line = 1;
+        int c = tokens.next();
+        while (c != ']') {
+            if (c != '{') {
+                throw new IOException("Record " + line + ": expected an object");
+            }
+            Map<String, String> record = new HashMap<>();
+            c = tokens.next();
+            while (c != '}') {
+                if (c != '"') {
+                    throw new IOException("Record " + line + ": expected a field name");
+                }
+                String name = tokens.string();
+                tokens.expect(':');
+                record.put(name.toLowerCase(), tokens.value());
+                c = tokens.next();
+                if (c == ',') {
+                    c = tokens.next();
+                }
+            }
+            add(record, line++);
+            c = tokens.next();
+            if (c == ',') {
+                c = tokens.next();
+            }
+        }
+    }
+
+    private class JsonTokens {
+        private int pushedBack = -2;
+
+        // The next character that is not white space
+        int next() throws IOException {
+            int c;
+            if (pushedBack != -2) {
+                c = pushedBack;
+                pushedBack = -2;
+            } else {
+                c = read();
+            }
+            while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                c = read();
+            }
+            if (c == -1) {
+                throw new IOException("Unexpected end of JSON");
+            }
+            return c;
+        }
+
+        void expect(char expected) throws IOException {
+            int c = next();
+            if (c != expected) {
+                throw new IOException("Expected " + expected + " in JSON, found " + (char) c);
+            }
+        }
+
+        // The rest of a string whose opening quote was read
+        String string() throws IOException {
+            StringBuilder text = new StringBuilder();
+            for (int c = read(); c != '"'; c = read()) {
+                if (c == -1) {
+                    throw new IOException("Unterminated string in JSON");
+                } else if (c == '\\') {
+                    c = read();
+                    switch (c) {
+                        case 'n':
+                            text.append('\n');
+                            break;
+                        case 't':
+                            text.append('\t');
+                            break;
+                        case 'r':
+                            text.append('\r');
+                            break;
+                        case 'b':
+                            text.append('\b');
+                            break;
+                        case 'f':
+                            text.append('\f');
+                            break;
+                        case 'u':
+                            char[] hex = new char[4];
+                            for (int i = 0; i < 4; i++) {
+                                hex[i] = (char) read();
+                            }
+                            text.append((char) Integer.parseInt(new String(hex), 16));
+                            break;
+                        default:
+                            text.append((char) c);
+                    }
+                } else {
+                    text.append((char) c);
+                }
+            }
+            return text.toString();
+        }
+
+        // A value as text, or null for null
+        String value() throws IOException {
+            int c = next();
+            if (c == '"') {
+                return string();
+            }
+            StringBuilder text = new StringBuilder();
+            while (c != ',' && c != '}' && c != ' ' && c != '\n' && c != '\r' && c != '\t' && c != -1) {
+                text.append((char) c);
+                c = read();
+            }
+            pushedBack = c;
+            String token = text.toString();
+            return token.equals("null") ? null : token;
+        }
+    }
+}
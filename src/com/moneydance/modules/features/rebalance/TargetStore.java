@@ -0,0 +1,389 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import com.infinitekind.moneydance.model.Account;
+import com.infinitekind.moneydance.model.AccountBook;
+import com.infinitekind.moneydance.model.CurrencyType;
+import com.infinitekind.util.StreamVector;
+import com.moneydance.apps.md.controller.UserPreferences;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+
+// The securities and target allocations of each account. An account's settings are read from the preferences
+// once, on first use, and kept in memory (targets as primitive doubles, with a hash index by security name).
+// Changes take effect in memory immediately and are written to the preferences by a PreferenceWriter.
+//
+// Each account's settings (targets, cash target, and model) are one preference, encoded by AccountSettings and
+// keyed by the account's UUID, by which the store's callers identify accounts, so that they survive renaming the
+// account and accounts with the same name are kept apart. Settings still in the old form, under keys made from the
+// account's name, are read once and written in the new form; the old keys are left as they are, for older versions
+// of the extension.
+//
+// An account may instead follow a named model portfolio, whose targets are stored once and shared by every
+// account linked to it: reading such an account's targets reads the model's, and changing them changes the model.
+class TargetStore {
+    private static final String RB_PREF = "ReBalance";
+    private static final String SEP = "%%";
+    private static final String ACCOUNT = "Account";
+    private static final String SETTINGS = "Settings";
+    private static final String SECURITIES = "Securities";
+    private static final String TARGETS = "Targets";
+    private static final String CASH_TARGET = "CashTarget";
+    private static final String MODEL = "Model";
+    private static final String MODELS = "Models";
+    private static final AccountTargets NO_TARGETS = new AccountTargets(new String[0], new double[0]);
+
+    private final UserPreferences up;
+    private final PreferenceWriter writer;
+    private final Supplier<AccountBook> books;
+    private AccountBook book;                   // Of the accounts held
+    private final Map<String, Settings> accounts = new HashMap<>();      // By account ID
+    private final Map<String, AccountTargets> models = new HashMap<>();
+    private List<String> modelNames;
+
+    // books supplies the open file, whose accounts and securities give the IDs settings are kept by.
+    TargetStore(UserPreferences up, PreferenceWriter writer, Supplier<AccountBook> books) {
+        this.up = up;
+        this.writer = writer;
+        this.books = books;
+    }
+
+    // Target for a security in an account, or 0.0 if the account has no target for it.
+    synchronized double getTarget(String accountId, String securityName) {
+        return getAccountTargets(accountId).getTarget(securityName);
+    }
+
+    // Targets by security, in the order they were saved: a copy, so that loading an account takes the store's lock
+    // once rather than once per security.
+    synchronized Map<String, Double> getTargets(String accountId) {
+        AccountTargets accountTargets = getAccountTargets(accountId);
+        Map<String, Double> targets = new LinkedHashMap<>(accountTargets.securities.length * 2);
+        for (int i = 0; i < accountTargets.securities.length; i++) {
+            targets.putIfAbsent(accountTargets.securities[i], accountTargets.targets[i]);
+        }
+        return targets;
+    }
+
+    // The securities with a saved target, in the order they were saved.
+    synchronized List<String> getSecurities(String accountId) {
+        return Collections.unmodifiableList(Arrays.asList(getAccountTargets(accountId).securities));
+    }
+
+    // For an account that follows a model, securities that the model does not have and whose target is zero
+    // (e.g. ones the account happens to hold) are left out of the model.
+    synchronized void setTargets(String accountId, String[] securities, double[] targets) {
+        Settings settings = getSettings(accountId);
+        if (settings.model.isEmpty()) {
+            settings.targets = new AccountTargets(securities, targets);
+            save(settings);
+        } else {
+            AccountTargets model = getModelTargets(settings.model);
+            String[] modelSecurities = new String[securities.length];
+            double[] modelTargets = new double[securities.length];
+            int size = 0;
+            for (int i = 0; i < securities.length; i++) {
+                if (targets[i] != 0.0 || model.index.containsKey(securities[i])) {
+                    modelSecurities[size] = securities[i];
+                    modelTargets[size++] = targets[i];
+                }
+            }
+            setModelTargets(settings.model, Arrays.copyOf(modelSecurities, size), Arrays.copyOf(modelTargets, size));
+        }
+    }
+
+    // Change one security's target, adding the security if the account has no target for it yet.
+    synchronized void setTarget(String accountId, String securityName, double target) {
+        AccountTargets accountTargets = getAccountTargets(accountId);
+        Integer i = accountTargets.index.get(securityName);
+        if (i != null) {
+            accountTargets.targets[i] = target;
+        } else {
+            int n = accountTargets.securities.length;
+            String[] securities = Arrays.copyOf(accountTargets.securities, n + 1);
+            double[] targets = Arrays.copyOf(accountTargets.targets, n + 1);
+            securities[n] = securityName;
+            targets[n] = target;
+            accountTargets = new AccountTargets(securities, targets);
+        }
+        Settings settings = getSettings(accountId);
+        if (settings.model.isEmpty()) {
+            settings.targets = accountTargets;
+            save(settings);
+        } else {
+            String modelName = settings.model;
+            models.put(modelName, accountTargets);
+            writer.schedule(modelKey(modelName, TARGETS), () -> saveModel(modelName));
+        }
+    }
+
+    // Change the targets of several securities at once, adding those the account has no target for yet, with a
+    // single write of the account's settings.
+    synchronized void mergeTargets(String accountId, Map<String, Double> newTargets) {
+        AccountTargets accountTargets = getAccountTargets(accountId);
+        int n = accountTargets.securities.length;
+        String[] securities = Arrays.copyOf(accountTargets.securities, n + newTargets.size());
+        double[] targets = Arrays.copyOf(accountTargets.targets, n + newTargets.size());
+        int size = n;
+        for (Map.Entry<String, Double> target : newTargets.entrySet()) {
+            Integer i = accountTargets.index.get(target.getKey());
+            if (i != null) {
+                targets[i] = target.getValue();
+            } else {
+                securities[size] = target.getKey();
+                targets[size++] = target.getValue();
+            }
+        }
+        setTargets(accountId, Arrays.copyOf(securities, size), Arrays.copyOf(targets, size));
+    }
+
+    // Fraction of the account to keep in cash. Methods whose honorsCashTarget() is true (all but greedy) keep it.
+    synchronized double getCashTarget(String accountId) {
+        return getSettings(accountId).cashTarget;
+    }
+
+    synchronized void setCashTarget(String accountId, double cashTarget) {
+        Settings settings = getSettings(accountId);
+        settings.cashTarget = cashTarget;
+        save(settings);
+    }
+
+    // The names of the model portfolios, in the order they were created.
+    synchronized List<String> getModelNames() {
+        if (modelNames == null) {
+            try (Timing.Span ignored = Metrics.PREFERENCE_READ.begin()) {
+                StreamVector names = up.getVectorSetting(RB_PREF + SEP + MODELS, new StreamVector());
+                modelNames = new ArrayList<>(names.size());
+                for (Object name : names) {
+                    modelNames.add((String) name);
+                }
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<>(modelNames));
+    }
+
+    // The model portfolio the account follows, or null.
+    synchronized String getModel(String accountId) {
+        String modelName = getSettings(accountId).model;
+        return modelName.isEmpty() ? null : modelName;
+    }
+
+    // Link the account to a model, or with null, unlink it and give it its own copy of the model's targets.
+    synchronized void setModel(String accountId, String modelName) {
+        Settings settings = getSettings(accountId);
+        if (modelName == null && !settings.model.isEmpty()) {
+            AccountTargets model = getModelTargets(settings.model);
+            settings.targets = new AccountTargets(model.securities, model.targets.clone());
+        } else if (modelName != null) {
+            settings.targets = NO_TARGETS;
+        }
+        settings.model = modelName == null ? "" : modelName;
+        save(settings);
+    }
+
+    // Create a model (or replace one's targets) and make it available to every account.
+    synchronized void setModelTargets(String modelName, String[] securities, double[] targets) {
+        models.put(modelName, new AccountTargets(securities, targets));
+        writer.schedule(modelKey(modelName, TARGETS), () -> saveModel(modelName));
+        if (!getModelNames().contains(modelName)) {
+            modelNames.add(modelName);
+            StreamVector names = new StreamVector();
+            names.addAll(modelNames);
+            writer.schedule(RB_PREF + SEP + MODELS, () -> up.setSetting(RB_PREF + SEP + MODELS, names));
+        }
+    }
+
+    private AccountTargets getModelTargets(String modelName) {
+        AccountTargets model = models.get(modelName);
+        if (model == null) {
+            try (Timing.Span ignored = Metrics.PREFERENCE_READ.begin()) {
+                model = load(modelKey(modelName, SECURITIES), modelKey(modelName, TARGETS));
+            }
+            models.put(modelName, model);
+        }
+        return model;
+    }
+
+    private AccountTargets getAccountTargets(String accountId) {
+        Settings settings = getSettings(accountId);
+        return settings.model.isEmpty() ? settings.targets : getModelTargets(settings.model);
+    }
+
+    private Settings getSettings(String accountId) {
+        AccountBook currentBook = books.get();
+        if (currentBook != book) {
+            book = currentBook;
+            accounts.clear();   // Another file's accounts
+        }
+        Settings settings = accounts.get(accountId);
+        if (settings == null) {
+            try (Timing.Span ignored = Metrics.PREFERENCE_READ.begin()) {
+                settings = load(accountId);
+            }
+            accounts.put(accountId, settings);
+        }
+        return settings;
+    }
+
+    private Settings load(String accountId) {
+        String key = RB_PREF + SEP + SETTINGS + SEP + accountId;
+        String encoded = up.getSetting(key, null);
+        if (encoded != null) {
+            try {
+                AccountSettings decoded = AccountSettings.decode(encoded, this::securityName);
+                return new Settings(key, new AccountTargets(decoded.securities, decoded.targets),
+                        decoded.cashTarget, decoded.model);
+            } catch (IllegalArgumentException e) {
+                System.err.println("ReBalance: cannot read the settings of account " + accountId + ": "
+                        + e.getMessage());
+            }
+        }
+
+        // Migrate the settings from the old keys, made from the account's name, if it has any. Reading an account
+        // that has no settings writes nothing.
+        Account account = book == null ? null : book.getAccountByUUID(accountId);
+        if (account == null) {
+            return new Settings(key, NO_TARGETS, 0.0, "");
+        }
+        String accountName = account.getAccountName();
+        String cashTarget = up.getSetting(accountKey(accountName, CASH_TARGET), null);
+        String model = up.getSetting(accountKey(accountName, MODEL), null);
+        AccountTargets targets = load(accountKey(accountName, SECURITIES), accountKey(accountName, TARGETS));
+        Settings settings = new Settings(key, model == null || model.isEmpty() ? targets : NO_TARGETS,
+                cashTarget == null ? 0.0 : Double.parseDouble(cashTarget), model == null ? "" : model);
+        if (targets.securities.length > 0 || cashTarget != null || model != null) {
+            save(settings);
+        }
+        return settings;
+    }
+
+    private AccountTargets load(String securitiesKey, String targetsKey) {
+        StreamVector securities = up.getVectorSetting(securitiesKey, new StreamVector());
+        StreamVector targets = up.getVectorSetting(targetsKey, new StreamVector());
+
+        String[] names = new String[securities.size()];
+        double[] values = new double[securities.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = (String) securities.get(i);
+            Object target = i < targets.size() ? targets.get(i) : null;
+            values[i] = target == null ? 0.0 : Double.parseDouble((String) target);
+        }
+        return new AccountTargets(names, values);
+    }
+
+    // Encode the account's current (not necessarily the scheduled) settings.
+    private void save(Settings settings) {
+        writer.schedule(settings.key, () -> {
+            String encoded;
+            synchronized (this) {
+                encoded = new AccountSettings(settings.targets.securities, settings.targets.targets,
+                        settings.cashTarget, settings.model).encode(this::securityId);
+            }
+            up.setSetting(settings.key, encoded);
+        });
+    }
+
+    private void saveModel(String modelName) {
+        AccountTargets model;
+        synchronized (this) {
+            model = models.get(modelName);
+        }
+        StreamVector securities = new StreamVector();
+        StreamVector targets = new StreamVector();
+
+        for (int i = 0; i < model.securities.length; i++) {
+            securities.add(model.securities[i]);
+            targets.add(Double.toString(model.targets[i]));
+        }
+        up.setSetting(modelKey(modelName, SECURITIES), securities);
+        up.setSetting(modelKey(modelName, TARGETS), targets);
+    }
+
+    private String securityId(String securityName) {
+        CurrencyType security = book == null ? null : book.getCurrencies().getCurrencyByName(securityName);
+        return security == null ? null : security.getIDString();
+    }
+
+    private String securityName(String securityId) {
+        CurrencyType security = book == null ? null : book.getCurrencies().getCurrencyByIDString(securityId);
+        return security == null ? null : security.getName();
+    }
+
+    private static String accountKey(String accountName, String setting) {
+        return RB_PREF + SEP + ACCOUNT + SEP + accountName + SEP + setting;
+    }
+
+    private static String modelKey(String modelName, String setting) {
+        return RB_PREF + SEP + MODEL + SEP + modelName + SEP + setting;
+    }
+
+
+    // An account's settings in memory, and the preference they are saved in.
+    private static class Settings {
+        final String key;
+        AccountTargets targets;     // NO_TARGETS while the account follows a model
+        double cashTarget;
+        String model;               // "" for none
+
+        Settings(String key, AccountTargets targets, double cashTarget, String model) {
+            this.key = key;
+            this.targets = targets;
+            this.cashTarget = cashTarget;
+            this.model = model;
+        }
+    }
+
+    private static class AccountTargets {
+        final String[] securities;
+        final double[] targets;
+        final Map<String, Integer> index;
+
+        AccountTargets(String[] securities, double[] targets) {
+            this.securities = securities;
+            this.targets = targets;
+            index = new HashMap<>(securities.length * 2);
+            for (int i = 0; i < securities.length; i++) {
+                if (!index.containsKey(securities[i])) { // First entry wins, as with StreamVector.indexOf
+                    index.put(securities[i], i);
+                }
+            }
+        }
+
+        double getTarget(String securityName) {
+            Integer i = index.get(securityName);
+            return i == null ? 0.0 : targets[i];
+        }
+    }
+}
@@ -0,0 +1,150 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+
+
+// Chart of the number of trades and the drift left after them (the sum of the distances of the positions and
+// cash from their targets) against one threshold, from a sweep, to help choose tolerances.
+class ThresholdCurveDialog extends JDialog {
+    private final ThresholdSweep sweep;
+    private final JComboBox<ThresholdSweep.Axis> axisList = new JComboBox<>(ThresholdSweep.Axis.values());
+    private final JLabel pointLabel = new JLabel(" ");
+    private final Chart chart = new Chart();
+
+    ThresholdCurveDialog(Frame owner, String accountName, ThresholdSweep sweep) {
+        super(owner, "Tolerance Curve: " + accountName, false);
+        this.sweep = sweep;
+
+        JPanel top = new JPanel();
+        top.add(new JLabel("Threshold"));
+        top.add(axisList);
+        axisList.addActionListener(e -> chart.show((ThresholdSweep.Axis) axisList.getSelectedItem()));
+        pointLabel.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
+
+        getContentPane().add(top, BorderLayout.NORTH);
+        getContentPane().add(chart, BorderLayout.CENTER);
+        getContentPane().add(pointLabel, BorderLayout.SOUTH);
+        chart.show(ThresholdSweep.Axis.PERCENT);
+        setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        pack();
+        setLocationRelativeTo(owner);
+    }
+
+    private static String formatLimit(ThresholdSweep.Axis axis, double limit) {
+        return axis == ThresholdSweep.Axis.PERCENT ? String.format("%.1f%%", limit * 100.0)
+                : String.format("%,.0f", limit);
+    }
+
+    // Trades (blue) and drift (red), each scaled to its own maximum, with the threshold on the horizontal axis.
+    private class Chart extends JPanel {
+        private static final int MARGIN = 40;
+        private ThresholdSweep.Axis axis;
+        private double[] limits;
+        private RebalancePlan[] plans;
+        private int maxTrades;
+        private double maxDrift;
+
+        Chart() {
+            setPreferredSize(new Dimension(600, 300));
+            setBackground(Color.WHITE);
+            addMouseMotionListener(new MouseAdapter() {
+                @Override
+                public void mouseMoved(MouseEvent e) {
+                    int i = indexAt(e.getX());
+                    if (i >= 0) {
+                        pointLabel.setText(String.format("%s: %d trades, %.2f%% drift", formatLimit(axis, limits[i]),
+                                plans[i].trades, plans[i].drift * 100.0));
+                    }
+                }
+            });
+        }
+
+        void show(ThresholdSweep.Axis axis) {
+            this.axis = axis;
+            limits = sweep.getLimits(axis);
+            plans = sweep.getPlans(axis);
+            maxTrades = 1;
+            maxDrift = Double.MIN_VALUE;
+            for (RebalancePlan plan : plans) {
+                maxTrades = Math.max(maxTrades, plan.trades);
+                maxDrift = Math.max(maxDrift, plan.drift);
+            }
+            pointLabel.setText(String.format("Up to %d trades, up to %.2f%% drift", maxTrades, maxDrift * 100.0));
+            repaint();
+        }
+
+        private int indexAt(int x) {
+            int width = getWidth() - 2 * MARGIN;
+            if (plans.length == 0 || x < MARGIN || x > MARGIN + width) {
+                return -1;
+            }
+            return (int) Math.round((x - MARGIN) * (plans.length - 1) / (double) width);
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            int width = getWidth() - 2 * MARGIN;
+            int height = getHeight() - 2 * MARGIN;
+            g.setColor(Color.GRAY);
+            g.drawRect(MARGIN, MARGIN, width, height);
+            if (plans.length < 2) {
+                return;
+            }
+            g.drawString(formatLimit(axis, limits[0]), MARGIN, MARGIN + height + 15);
+            String last = formatLimit(axis, limits[limits.length - 1]);
+            g.drawString(last, MARGIN + width - g.getFontMetrics().stringWidth(last), MARGIN + height + 15);
+
+            int[] xs = new int[plans.length];
+            int[] trades = new int[plans.length];
+            int[] drift = new int[plans.length];
+            for (int i = 0; i < plans.length; i++) {
+                xs[i] = MARGIN + (int) ((long) i * width / (plans.length - 1));
+                trades[i] = MARGIN + height - (int) ((long) plans[i].trades * height / maxTrades);
+                drift[i] = MARGIN + height - (int) (plans[i].drift / maxDrift * height);
+            }
+            g.setColor(Color.BLUE);
+            g.drawPolyline(xs, trades, xs.length);
+            g.drawString("Trades (max " + maxTrades + ")", MARGIN, MARGIN - 5);
+            g.setColor(Color.RED);
+            g.drawPolyline(xs, drift, xs.length);
+            String driftLabel = String.format("Drift (max %.2f%%)", maxDrift * 100.0);
+            g.drawString(driftLabel, MARGIN + width - g.getFontMetrics().stringWidth(driftLabel), MARGIN - 5);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+
+// The plans of one set of positions and targets at every setting of either threshold, with the other threshold
+// and the method held where they were, so that scrubbing a threshold spinner looks a plan up instead of
+// recomputing it, and so the trades and drift of each setting can be charted.
+//
+// A threshold affects a plan only through which rows are far enough from their targets to trade, and those rows
+// only shrink as one threshold rises, so the number of them identifies the plan. The sweep counts them at each
+// point of a grid (in parallel, each task on a copy of the engine that no other task is using; the copies belong
+// to the sweep and go with it), then computes one plan per distinct
+// count. A lookup counts the rows at the new setting and finds its plan, whether or not the setting is on the grid.
+final class ThresholdSweep {
+    enum Axis {PERCENT, VALUE}
+
+    private final RebalanceEngine base;
+    private final Queue<RebalanceEngine> engines = new ConcurrentLinkedQueue<>();   // Copies of base not in use
+    private final RebalancePolicy policy;
+    private final double[][] limits = new double[Axis.values().length][];
+    private final int[][] counts = new int[Axis.values().length][];
+    private final Map<Axis, Map<Integer, RebalancePlan>> plans = new EnumMap<>(Axis.class);
+
+    // The engine holds the positions and targets; it is copied, not changed. Grids are threshold values (percent
+    // as a fraction), to which Double.MAX_VALUE, the threshold switched off, is added.
+    ThresholdSweep(RebalanceEngine engine, RebalancePolicy policy, double[] percentLimits, double[] valueLimits) {
+        this.policy = policy;
+        limits[Axis.PERCENT.ordinal()] = withOff(percentLimits);
+        limits[Axis.VALUE.ordinal()] = withOff(valueLimits);
+        for (Axis axis : Axis.values()) {
+            plans.put(axis, new ConcurrentHashMap<>());
+        }
+        base = engine.copy();
+    }
+
+    // Run a task on a copy of the engine that no other task is using, made if none is free, and free it after.
+    private <T> T withEngine(Function<RebalanceEngine, T> task) {
+        RebalanceEngine engine = engines.poll();
+        if (engine == null) {
+            engine = base.copy();
+        }
+        try {
+            return task.apply(engine);
+        } finally {
+            engines.add(engine);
+        }
+    }
+
+    // Evenly spaced values from min to max, e.g. a spinner's.
+    static double[] grid(double min, double max, double step, double scale) {
+        int n = (int) Math.floor((max - min) / step + 1e-9) + 1;
+        double[] grid = new double[n];
+        for (int i = 0; i < n; i++) {
+            grid[i] = (min + i * step) * scale;
+        }
+        return grid;
+    }
+
+    private static double[] withOff(double[] grid) {
+        double[] limits = Arrays.copyOf(grid, grid.length + 1);
+        limits[grid.length] = Double.MAX_VALUE;
+        return limits;
+    }
+
+    // Compute the plans; may take a while, so call it off the Swing thread. Returns false if cancelled.
+    boolean compute(BooleanSupplier cancelled) {
+        for (Axis axis : Axis.values()) {
+            double[] axisLimits = limits[axis.ordinal()];
+            int[] axisCounts = IntStream.range(0, axisLimits.length).parallel()
+                    .map(i -> cancelled.getAsBoolean() ? -1 : countEligible(axis, axisLimits[i]))
+                    .toArray();
+            counts[axis.ordinal()] = axisCounts;
+            Map<Integer, RebalancePlan> axisPlans = plans.get(axis);
+            IntStream.range(0, axisLimits.length).parallel()
+                    .filter(i -> i == firstWithCount(axisCounts, i))
+                    .forEach(i -> {
+                        if (!cancelled.getAsBoolean()) {
+                            axisPlans.put(axisCounts[i], planAt(axis, axisLimits[i]));
+                        }
+                    });
+            if (cancelled.getAsBoolean()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Counts fall as the limit rises, so equal counts are adjacent.
+    private static int firstWithCount(int[] counts, int i) {
+        return i > 0 && counts[i - 1] == counts[i] ? i - 1 : i;
+    }
+
+    private int countEligible(Axis axis, double limit) {
+        return withEngine(engine -> {
+            apply(axis, limit).applyTo(engine);
+            return engine.countEligible();
+        });
+    }
+
+    private RebalancePlan planAt(Axis axis, double limit) {
+        return withEngine(engine -> {
+            apply(axis, limit).applyTo(engine);
+            engine.rebalance();
+            return engine.savePlan();
+        });
+    }
+
+    private RebalancePolicy apply(Axis axis, double limit) {
+        return axis == Axis.PERCENT ? new RebalancePolicy(limit, policy.valueLimit, policy.method)
+                : new RebalancePolicy(policy.percentLimit, limit, policy.method);
+    }
+
+    // The plan for a new policy that moves one threshold of the swept one, or null if the sweep does not have it.
+    // The engine must hold the same positions and targets as the swept one; the policy is applied to it.
+    RebalancePlan lookup(RebalanceEngine engine, RebalancePolicy newPolicy) {
+        Axis axis;
+        if (newPolicy.method != policy.method) {
+            return null;
+        } else if (newPolicy.valueLimit == policy.valueLimit) {
+            axis = Axis.PERCENT;
+        } else if (newPolicy.percentLimit == policy.percentLimit) {
+            axis = Axis.VALUE;
+        } else {
+            return null;
+        }
+        newPolicy.applyTo(engine);
+        return plans.get(axis).get(engine.countEligible());
+    }
+
+    // The grid of one axis, without the setting that switches the threshold off.
+    double[] getLimits(Axis axis) {
+        double[] axisLimits = limits[axis.ordinal()];
+        return Arrays.copyOf(axisLimits, axisLimits.length - 1);
+    }
+
+    // The plan at each point of the grid of one axis.
+    RebalancePlan[] getPlans(Axis axis) {
+        int[] axisCounts = counts[axis.ordinal()];
+        RebalancePlan[] axisPlans = new RebalancePlan[axisCounts.length - 1];
+        for (int i = 0; i < axisPlans.length; i++) {
+            axisPlans[i] = plans.get(axis).get(axisCounts[i]);
+        }
+        return axisPlans;
+    }
+
+    RebalancePolicy getPolicy() {
+        return policy;
+    }
+}
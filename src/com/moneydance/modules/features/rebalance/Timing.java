@@ -0,0 +1,125 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+// Count, durations, and a histogram of one kind of operation, for the Metrics MXBean. Each timed operation is
+// also a Flight Recorder event when the JVM supports JFR. Recording takes no locks, so it can be used on the
+// Swing thread and in the engine.
+//
+//     try (Timing.Span ignored = Metrics.REBALANCE.begin()) { ... }
+//
+final class Timing {
+    static final long[] BUCKET_LIMITS_NANOS = {100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L};
+    static final String[] BUCKET_LABELS = {"<0.1ms", "<1ms", "<10ms", "<100ms", "<1s", ">=1s"};
+    private static final boolean JFR = isJfrAvailable();
+
+    private final String name;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private volatile long lastNanos;
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKET_LABELS.length);
+
+    Timing(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    Span begin() {
+        return new Span();
+    }
+
+    void record(long nanos) {
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        lastNanos = nanos;
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS_NANOS.length && nanos >= BUCKET_LIMITS_NANOS[bucket]) {
+            bucket++;
+        }
+        histogram.incrementAndGet(bucket);
+    }
+
+    TimingSnapshot snapshot() {
+        long[] buckets = new long[histogram.length()];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = histogram.get(i);
+        }
+        return new TimingSnapshot(name, count.get(), totalNanos.get() / 1e6, lastNanos / 1e6, maxNanos.get() / 1e6,
+                buckets, BUCKET_LABELS.clone());
+    }
+
+    void reset() {
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+        lastNanos = 0;
+        for (int i = 0; i < histogram.length(); i++) {
+            histogram.set(i, 0);
+        }
+    }
+
+    // One timed operation.
+    final class Span implements AutoCloseable {
+        private final Object event = JFR ? OperationEvent.begin(name) : null;
+        private final long start = System.nanoTime();   // After the event, so JFR's setup is not timed
+
+        @Override
+        public void close() {
+            record(System.nanoTime() - start);
+            if (event != null) {
+                OperationEvent.commit(event);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import java.beans.ConstructorProperties;
+
+
+// The statistics of one kind of operation, as JConsole and JMC show them (an MXBean composite).
+public final class TimingSnapshot {
+    private final String name;
+    private final long count;
+    private final double totalMillis;
+    private final double lastMillis;
+    private final double maxMillis;
+    private final long[] histogram;
+    private final String[] histogramBuckets;
+
+    @ConstructorProperties({"name", "count", "totalMillis", "lastMillis", "maxMillis", "histogram",
+            "histogramBuckets"})
+    public TimingSnapshot(String name, long count, double totalMillis, double lastMillis, double maxMillis,
+                          long[] histogram, String[] histogramBuckets) {
+        this.name = name;
+        this.count = count;
+        this.totalMillis = totalMillis;
+        this.lastMillis = lastMillis;
+        this.maxMillis = maxMillis;
+        this.histogram = histogram;
+        this.histogramBuckets = histogramBuckets;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getTotalMillis() {
+        return totalMillis;
+    }
+
+    public double getMeanMillis() {
+        return count == 0 ? 0.0 : totalMillis / count;
+    }
+
+    public double getLastMillis() {
+        return lastMillis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    // Number of operations in each of the buckets named by getHistogramBuckets
+    public long[] getHistogram() {
+        return histogram.clone();
+    }
+
+    public String[] getHistogramBuckets() {
+        return histogramBuckets.clone();
+    }
+}
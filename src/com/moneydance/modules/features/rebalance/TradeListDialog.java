@@ -0,0 +1,98 @@
+//
+// Copyright (c) 2016, James Larus
+//  All rights reserved.
+//
+//  Redistribution and use in source and binary forms, with or without
+//  modification, are permitted provided that the following conditions are
+//  met:
+//
+//  1. Redistributions of source code must retain the above copyright
+//  notice, this list of conditions and the following disclaimer.
+//
+//  2. Redistributions in binary form must reproduce the above copyright
+//  notice, this list of conditions and the following disclaimer in the
+//  documentation and/or other materials provided with the distribution.
+//
+//  3. Neither the name of the copyright holder nor the names of its
+//  contributors may be used to endorse or promote products derived from
+//  this software without specific prior written permission.
+//
+//  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+//  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+//  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+//  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+//  HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+//  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+//  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+//  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+//  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+//  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+//  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package com.moneydance.modules.features.rebalance;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import static com.moneydance.modules.features.rebalance.RebalanceRows.*;
+
+
+// Combined list of the trades planned for several accounts, grouped by account.
+class TradeListDialog extends JDialog {
+    private static final String[] COLUMNS = {"Account", "Name", "Symbol", "Buy", "Sell", "Price", "Amount"};
+
+    TradeListDialog(Frame owner, List<AccountSnapshot> snapshots) {
+        super(owner, "ReBalance All Accounts", false);
+
+        Vector<Vector<Object>> trades = new Vector<>();
+        for (AccountSnapshot snapshot : snapshots) {
+            String accountName = snapshot.accountName;  // Shown on the first trade of each account only
+            for (Vector<Object> entry : snapshot.data) {
+                Double buy = (Double) entry.get(BUY_COL);
+                Double sell = (Double) entry.get(SELL_COL);
+                if (buy == null && sell == null) {
+                    continue;
+                }
+                double price = (Double) entry.get(PRICE_COL);
+                double shares = (buy == null ? 0.0 : buy) - (sell == null ? 0.0 : sell);
+                Vector<Object> trade = new Vector<>(COLUMNS.length);
+                trade.add(accountName);
+                trade.add(entry.get(NAME_COL));
+                trade.add(entry.get(SYMBOL_COL));
+                trade.add(formatShares(buy));
+                trade.add(formatShares(sell));
+                trade.add(String.format("%.2f", price));
+                trade.add(String.format("%.2f", shares * price));
+                trades.add(trade);
+                accountName = null;
+            }
+        }
+
+        JTable table = new JTable(new DefaultTableModel(trades, new Vector<>(Arrays.asList(COLUMNS))) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        });
+        table.setFillsViewportHeight(true);
+        JLabel summary = new JLabel(trades.size() + " trades in " + snapshots.size() + " accounts");
+        summary.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
+
+        getContentPane().add(summary, BorderLayout.NORTH);
+        getContentPane().add(new JScrollPane(table), BorderLayout.CENTER);
+        setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        pack();
+        setLocationRelativeTo(owner);
+    }
+
+    // Whole shares without a decimal point; fractional shares as they are
+    private static String formatShares(Double shares) {
+        return shares == null ? null : BigDecimal.valueOf(shares).stripTrailingZeros().toPlainString();
+    }
+}
@@ -2,11 +2,544 @@ package com.moneydance.modules.features.rebalance;
 
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+
 import static org.junit.Assert.*;
 
 /**
  * Created by larus on 3/28/16.
  */
 public class ReBalanceTest {
+    private static final double EPSILON = 1e-9;
+
+    // Two securities worth 96 and 32 (price 8) and no cash, targeted at 50/50.
+    private RebalanceEngine twoPositions() {
+        RebalanceEngine engine = new RebalanceEngine(1);
+        engine.setTotalValue(128.0);
+        engine.addPosition(0.5, 0.75, 12.0, 8.0, 96.0);
+        engine.addPosition(0.5, 0.25, 4.0, 8.0, 32.0);
+        engine.setCash(0.0, 0.0);
+        engine.setThresholds(0.0, Double.MAX_VALUE);
+        return engine;
+    }
+
+    @Test
+    public void sellsExcessAndBuysShortfall() {
+        RebalanceEngine engine = twoPositions();
+        engine.rebalance();
+
+        assertEquals(4, engine.getSell(0));
+        assertEquals(0, engine.getBuy(0));
+        assertEquals(0.5, engine.getResult(0), EPSILON);
+        assertEquals(4, engine.getBuy(1));
+        assertEquals(0, engine.getSell(1));
+        assertEquals(0.5, engine.getResult(1), EPSILON);
+        assertEquals(0.0, engine.getCashResult(), EPSILON);
+        assertEquals(1.0, engine.getTotalTarget(), EPSILON);
+    }
+
+    @Test
+    public void thresholdsSuppressSmallTrades() {
+        RebalanceEngine engine = twoPositions();
+        engine.setThresholds(Double.MAX_VALUE, Double.MAX_VALUE); // Both thresholds off: nothing trades
+        engine.rebalance();
+        assertEquals(0, engine.getSell(0));
+        assertEquals(0, engine.getBuy(1));
+
+        engine.setThresholds(0.3, Double.MAX_VALUE); // 30%: 25% drift is tolerated
+        engine.rebalance();
+        assertEquals(0, engine.getSell(0));
+        assertEquals(0, engine.getBuy(1));
+        assertEquals(0.75, engine.getResult(0), EPSILON);
+
+        engine.setThresholds(Double.MAX_VALUE, 16.0); // $16: $32 drift is not tolerated
+        engine.rebalance();
+        assertEquals(4, engine.getSell(0));
+        assertEquals(4, engine.getBuy(1));
+    }
+
+    @Test
+    public void unspentFundsStayInCash() {
+        RebalanceEngine engine = new RebalanceEngine();
+        engine.setTotalValue(128.0);
+        engine.addPosition(0.75, 0.5, 8.0, 8.0, 64.0);
+        engine.setCash(64.0, 0.0);
+        engine.setThresholds(0.0, Double.MAX_VALUE);
+        engine.rebalance();
+
+        assertEquals(4, engine.getBuy(0));
+        assertEquals(0.75, engine.getResult(0), EPSILON);
+        assertEquals(32.0, engine.getCashSell(), EPSILON);
+        assertEquals(0.25, engine.getCashResult(), EPSILON);
+    }
+
+    @Test
+    public void reportsRowsChangedByATargetEdit() {
+        RebalanceEngine engine = twoPositions();
+        engine.addPosition(0.0, 0.0, 0.0, 8.0, 0.0);
+        engine.rebalance();
+        engine.clearChanges();
+
+        engine.setTarget(2, 0.0);
+        engine.rebalance();
+        assertFalse(engine.isChanged(0));
+        assertFalse(engine.isChanged(1));
+        assertTrue(engine.isChanged(2));
+        assertFalse(engine.isCashChanged());
+        engine.clearChanges();
+
+        engine.setTarget(0, 0.75); // Nothing to sell, so nothing to buy
+        engine.rebalance();
+        assertTrue(engine.isChanged(0));
+        assertTrue(engine.isChanged(1));
+        assertFalse(engine.isChanged(2));
+        assertTrue(engine.isCashChanged());
+        assertEquals(0, engine.getBuy(1));
+    }
+
+    // All cash, two securities targeted at 50/50 whose prices do not divide their targets.
+    private RebalanceEngine allCash(RebalanceEngine.Method method, double cashTarget) {
+        RebalanceEngine engine = new RebalanceEngine();
+        engine.setTotalValue(100.0);
+        engine.addPosition(0.5, 0.0, 0.0, 30.0, 0.0);
+        engine.addPosition(0.5, 0.0, 0.0, 20.0, 0.0);
+        engine.setCash(100.0, cashTarget);
+        engine.setThresholds(0.0, Double.MAX_VALUE);
+        engine.setMethod(method);
+        return engine;
+    }
+
+    @Test
+    public void optimalMethodSpendsWhatGreedyLeaves() {
+        RebalanceEngine engine = allCash(RebalanceEngine.Method.GREEDY, 0.0);
+        engine.rebalance();
+        assertEquals(1, engine.getBuy(0));
+        assertEquals(2, engine.getBuy(1));
+        assertEquals(0.3, engine.getCashResult(), EPSILON);
+
+        engine = allCash(RebalanceEngine.Method.OPTIMAL, 0.0);
+        engine.rebalance();
+        assertEquals(2, engine.getBuy(0));
+        assertEquals(2, engine.getBuy(1));
+        assertEquals(0.0, engine.getCashResult(), EPSILON);
+    }
+
     @Test
+    public void optimalMethodKeepsCashTarget() {
+        RebalanceEngine engine = allCash(RebalanceEngine.Method.OPTIMAL, 0.2);
+        engine.rebalance();
+        assertEquals(1, engine.getBuy(0));
+        assertEquals(2, engine.getBuy(1));
+        assertTrue(engine.getCashResult() >= 0.2);
+    }
+
+    // Too many positions for the solver to finish in its time limit: its plan still fits the funds above the target.
+    @Test
+    public void optimalMethodKeepsCashTargetInLargeAccounts() {
+        RebalanceEngine engine = new RebalanceEngine();
+        engine.setTotalValue(100000.0);
+        for (int i = 0; i < 2000; i++) {
+            engine.addPosition(1.2 / 2000, 0.0, 0.0, 3.0 + i % 7 * 1.3, 0.0); // Targets sum past 100%
+        }
+        engine.setCash(100000.0, 0.2);
+        engine.setThresholds(0.0, Double.MAX_VALUE);
+        engine.setMethod(RebalanceEngine.Method.OPTIMAL);
+        engine.rebalance();
+        assertTrue(engine.getCashResult() >= 0.2 - EPSILON);
+    }
+
+    @Test
+    public void preferenceWriterCoalescesWrites() {
+        PreferenceWriter writer = new PreferenceWriter();
+        int[] writes = new int[1];
+        int[] lastValue = new int[1];
+        for (int i = 0; i < 100; i++) {
+            int value = i;
+            writer.schedule("key", () -> {
+                writes[0]++;
+                lastValue[0] = value;
+            });
+        }
+        writer.flush();
+        writer.flush();
+
+        assertEquals(1, writes[0]);
+        assertEquals(99, lastValue[0]);
+        writer.shutdown();
+    }
+
+    // A flush waits for a batch another thread is writing, so the newer value lands last.
+    @Test
+    public void preferenceWriterWritesBatchesInOrder() throws InterruptedException {
+        PreferenceWriter writer = new PreferenceWriter();
+        CountDownLatch writing = new CountDownLatch(1);
+        int[] lastValue = new int[1];
+        writer.schedule("key", () -> {
+            writing.countDown();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            lastValue[0] = 1;
+        });
+        Thread older = new Thread(writer::flush);
+        older.start();
+        writing.await();
+        writer.schedule("key", () -> lastValue[0] = 2);
+        writer.flush();
+        older.join();
+
+        assertEquals(2, lastValue[0]);
+        writer.shutdown();
+    }
+
+    @Test
+    public void tableModelIndexesRowsByName() {
+        Vector<Vector<Object>> data = new Vector<>();
+        RebalanceRows.createEntry(data, "A", "AAA", 0.5, 0.0, 0.0, 1.0, 0.0);
+        RebalanceRows.createEntry(data, "B", "BBB", 0.5, 0.0, 0.0, 1.0, 0.0);
+        FooterTableModel model = new FooterTableModel(data, new Vector<>(), RebalanceRows.columnNames(),
+                RebalanceRows.columnTypes(), null);
+        assertEquals(1, model.findRow("B"));
+        assertEquals(-1, model.findRow("C"));
+
+        model.appendRow(RebalanceRows.newEntry("C", "CCC", 0.0, 0.0, 0.0, 1.0, 0.0));
+        assertEquals(2, model.findRow("C"));
+
+        model.removeRowsIf(row -> model.getString(row, RebalanceRows.NAME_COL).equals("A"));
+        assertEquals(-1, model.findRow("A"));
+        assertEquals(0, model.findRow("B"));
+        assertEquals(1, model.findRow("C"));
+    }
+
+    @Test
+    public void columnSorterOrdersRowsByTypedColumns() {
+        Vector<Vector<Object>> data = new Vector<>();
+        RebalanceRows.createEntry(data, "B", "BBB", 0.5, 0.0, 9.0, 1.0, 0.0);
+        RebalanceRows.createEntry(data, "C", "CCC", 0.5, 0.0, 10.0, 1.0, 0.0);
+        RebalanceRows.createEntry(data, "A", "AAA", 0.5, 0.0, null, 1.0, 0.0);
+        FooterTableModel model = new FooterTableModel(data, new Vector<>(), RebalanceRows.columnNames(),
+                RebalanceRows.columnTypes(), null);
+        assertNull(model.getValueAt(2, RebalanceRows.SHARE_COL));
+
+        ColumnSorter sorter = new ColumnSorter(model);
+        sorter.toggleSortOrder(RebalanceRows.NAME_COL);
+        assertEquals(2, sorter.convertRowIndexToModel(0));
+        assertEquals(1, sorter.convertRowIndexToModel(2));
+
+        // Numerically (9 before 10), with the empty cell first
+        sorter.toggleSortOrder(RebalanceRows.SHARE_COL);
+        assertEquals(2, sorter.convertRowIndexToModel(0));
+        assertEquals(0, sorter.convertRowIndexToModel(1));
+        assertEquals(1, sorter.convertRowIndexToModel(2));
+    }
+
+    @Test
+    public void columnWidthsFitSampledAndChangedCells() {
+        Vector<Vector<Object>> data = new Vector<>();
+        for (int i = 0; i < 1000; i++) {
+            data.add(new Vector<>(Arrays.asList(i == 777 ? "A security with a much longer name" : "S" + i, 1.0)));
+        }
+        FooterTableModel model = new FooterTableModel(data, new Vector<>(),
+                new Vector<>(Arrays.asList("Name", "Shares")), new Vector<>(Arrays.asList("Text", "Shares")), null);
+        FooterTableBase table = new FooterTableBase(model);
+        table.getColumnModel().getColumn(0).setPreferredWidth(0);
+        ColumnWidths columnWidths = new ColumnWidths(20);
+
+        // Row 777 is not in the sample, but has the longest name
+        columnWidths.fitTable(table);
+        int sampledWidth = table.getColumnModel().getColumn(0).getPreferredWidth();
+        model.removeRowsIf(row -> row != 777);
+        table.getColumnModel().getColumn(0).setPreferredWidth(0);
+        columnWidths.fitTable(table);
+        assertEquals(table.getColumnModel().getColumn(0).getPreferredWidth(), sampledWidth);
+
+        model.addTableModelListener(e -> columnWidths.fitChange(table, e));
+        model.setValueAt("A security with an even longer name than that", 0, 0);
+        assertTrue(table.getColumnModel().getColumn(0).getPreferredWidth() > sampledWidth);
+    }
+
+    @Test
+    public void footerTableMovesWidthListenersToNewModel() {
+        Vector<Vector<Object>> data = new Vector<>();
+        data.add(new Vector<>(Arrays.asList("A", 1.0)));
+        Vector<Vector<Object>> footer = new Vector<>();
+        footer.add(new Vector<>(Arrays.asList("Total", 1.0)));
+        Vector<String> names = new Vector<>(Arrays.asList("Name", "Shares"));
+        Vector<String> types = new Vector<>(Arrays.asList("Text", "Shares"));
+        FooterTableModel oldModel = new FooterTableModel(data, footer, names, types, null);
+        FooterTable table = new FooterTable(oldModel);
+        int bodyListeners = oldModel.getTableModelListeners().length;
+        int footerListeners = oldModel.getFooterModel().getTableModelListeners().length;
+
+        FooterTableModel newModel = new FooterTableModel(data, footer, names, types, null);
+        table.setModel(newModel);
+        assertEquals(0, oldModel.getTableModelListeners().length);
+        assertEquals(0, oldModel.getFooterModel().getTableModelListeners().length);
+        assertEquals(bodyListeners, newModel.getTableModelListeners().length);
+        assertEquals(footerListeners, newModel.getFooterModel().getTableModelListeners().length);
+    }
+
+    @Test
+    public void repriceUpdatesValuesAndActuals() {
+        Vector<Vector<Object>> data = new Vector<>();
+        Vector<Vector<Object>> footer = new Vector<>();
+        RebalanceRows.createEntry(data, "A", "AAA", 0.5, 0.5, 8.0, 8.0, 64.0);
+        RebalanceRows.createEntry(data, "B", "BBB", 0.5, 0.5, 8.0, 8.0, 64.0);
+        RebalanceRows.createTotalEntry(footer, 128.0);
+        FooterTableModel model = new FooterTableModel(data, footer, RebalanceRows.columnNames(),
+                RebalanceRows.columnTypes(), null);
+
+        RebalanceEngine engine = new RebalanceEngine();
+        RebalanceRows.rebalance(engine, model, 128.0, null);
+
+        assertTrue(RebalanceRows.reprice(model, Collections.singletonMap("A", 8.0), 128.0).isEmpty());
+        BitSet repriced = RebalanceRows.reprice(model, Collections.singletonMap("A", 24.0), 256.0);
+        assertEquals(2, repriced.cardinality());
+        assertEquals(192.0, model.getDouble(0, RebalanceRows.VALUE_COL), EPSILON);
+        assertEquals(0.75, model.getDouble(0, RebalanceRows.ACTUAL_COL), EPSILON);
+        assertEquals(0.25, model.getDouble(1, RebalanceRows.ACTUAL_COL), EPSILON);
+        assertEquals(256.0, model.getFooterModel().getDouble(0, RebalanceRows.VALUE_COL), EPSILON);
+
+        // Repricing the engine in place plans as a full reload does
+        RebalanceRows.reprice(engine, model, repriced, 256.0);
+        engine.rebalance();
+        RebalanceEngine reloaded = new RebalanceEngine();
+        RebalanceRows.load(reloaded, model, 256.0, null);
+        reloaded.rebalance();
+        for (int i = 0; i < model.getRowCount(); i++) {
+            assertEquals(reloaded.getSellShares(i), engine.getSellShares(i), EPSILON);
+            assertEquals(reloaded.getResult(i), engine.getResult(i), EPSILON);
+        }
+    }
+
+    @Test
+    public void lotPoliciesChooseLotsToSell() {
+        List<TaxLot> lots = Arrays.asList(new TaxLot(20200101, 4.0, 10.0),    // Long term, lowest cost
+                new TaxLot(20230501, 4.0, 30.0),                                // Long term
+                new TaxLot(20240301, 4.0, 40.0));                               // Short term, highest cost
+        int today = 20240601;
+
+        List<LotSale> fifo = LotPolicy.FIFO.select(lots, 6.0, 20.0, today);
+        assertEquals(2, fifo.size());
+        assertEquals(20200101, fifo.get(0).lot.date);
+        assertEquals(2.0, fifo.get(1).shares, EPSILON);
+
+        List<LotSale> highest = LotPolicy.HIGHEST_COST.select(lots, 2.0, 20.0, today);
+        assertEquals(20240301, highest.get(0).lot.date);
+        assertEquals(-40.0, highest.get(0).gain, EPSILON);
+        assertFalse(highest.get(0).longTerm);
+
+        List<LotSale> minShortTerm = LotPolicy.MIN_SHORT_TERM_GAIN.select(lots, 2.0, 20.0, today);
+        assertEquals(20230501, minShortTerm.get(0).lot.date);
+        assertTrue(minShortTerm.get(0).longTerm);
+    }
+
+    @Test
+    public void exactMethodTradesWholeShares() {
+        RebalanceEngine engine = twoPositions();
+        engine.setMethod(RebalanceEngine.Method.EXACT);
+        engine.rebalance();
+        assertEquals(4, engine.getSell(0));
+        assertEquals(4, engine.getBuy(1));
+        assertEquals(0.5, engine.getResult(0), EPSILON);
+        assertEquals(0.5, engine.getResult(1), EPSILON);
+        assertEquals(0.0, engine.getCashResult(), EPSILON);
+    }
+
+    @Test
+    public void exactFractionalMethodNeverOverspends() {
+        RebalanceEngine engine = allCash(RebalanceEngine.Method.EXACT_FRACTIONAL, 0.0);
+        engine.setUnitsPerShare(0, 10_000);
+        engine.setUnitsPerShare(1, 10_000);
+        engine.rebalance();
+        assertEquals(1, engine.getBuy(0));
+        assertEquals(1.6666, engine.getBuyShares(0), EPSILON);
+        assertEquals(2.5, engine.getBuyShares(1), EPSILON);
+        assertTrue(engine.getCashResult() >= 0.0);
+        assertEquals(1.0, engine.getResult(0) + engine.getResult(1) + engine.getCashResult(), EPSILON);
+    }
+
+    // The exact methods trade from Moneydance's balance in units, not from the share count in floating point.
+    @Test
+    public void exactMethodSellsFromBalanceUnits() {
+        RebalanceEngine engine = new RebalanceEngine();
+        engine.setTotalValue(300.0);
+        engine.addPosition(0.0, 1.0, 0.3, 1000.0, 300.0);
+        engine.setUnitsPerShare(0, 100_000_000);
+        engine.setBalanceUnits(0, 29_999_999);
+        engine.setCash(0.0, 0.0);
+        engine.setThresholds(0.0, Double.MAX_VALUE);
+        engine.setMethod(RebalanceEngine.Method.EXACT_FRACTIONAL);
+        engine.rebalance();
+        assertTrue(engine.getSellShares(0) <= 0.29999999 + 1e-12);     // Never more than is held
+        assertEquals(0.3, engine.getSellShares(0), 1e-4);
+        assertEquals(0.0, engine.getResult(0), EPSILON);
+    }
+
+    @Test
+    public void sweptPlansMatchRecomputedPlans() {
+        for (RebalanceEngine.Method method : RebalanceEngine.Method.values()) {
+            RebalanceEngine engine = new RebalanceEngine();
+            engine.setTotalValue(200.0);
+            engine.addPosition(0.2, 0.4, 10.0, 8.0, 80.0);     // $40 over
+            engine.addPosition(0.3, 0.25, 5.0, 10.0, 50.0);    // $10 under
+            engine.addPosition(0.5, 0.25, 10.0, 5.0, 50.0);    // $50 under
+            engine.setCash(20.0, 0.0);
+            RebalancePolicy policy = new RebalancePolicy(0.01, 30.0, method);
+            ThresholdSweep sweep = new ThresholdSweep(engine, policy,
+                    ThresholdSweep.grid(0.0, 100.0, 5.0, 0.01), ThresholdSweep.grid(0.0, 100.0, 10.0, 1.0));
+            assertTrue(sweep.compute(() -> false));
+
+            RebalancePolicy[] moves = {new RebalancePolicy(0.0, 30.0, method), new RebalancePolicy(0.123, 30.0, method),
+                    new RebalancePolicy(Double.MAX_VALUE, 30.0, method), new RebalancePolicy(0.01, 45.0, method)};
+            for (RebalancePolicy move : moves) {
+                RebalanceEngine swept = engine.copy();
+                swept.restorePlan(sweep.lookup(swept, move));
+                RebalanceEngine recomputed = engine.copy();
+                move.applyTo(recomputed);
+                recomputed.rebalance();
+                for (int i = 0; i < engine.size(); i++) {
+                    assertEquals(recomputed.getBuyShares(i), swept.getBuyShares(i), EPSILON);
+                    assertEquals(recomputed.getSellShares(i), swept.getSellShares(i), EPSILON);
+                    assertEquals(recomputed.getResult(i), swept.getResult(i), EPSILON);
+                }
+                assertEquals(recomputed.getCashResult(), swept.getCashResult(), EPSILON);
+            }
+            assertNull(sweep.lookup(engine.copy(), new RebalancePolicy(0.0, 0.0, method)));
+        }
+    }
+
+    private static PriceHistory history(int[] dates, double[] prices) {
+        return () -> new PriceHistory.Cursor() {
+            private int next = 0;
+
+            @Override
+            public int date() {
+                return next < dates.length ? dates[next] : Integer.MAX_VALUE;
+            }
+
+            @Override
+            public double price() {
+                return prices[next];
+            }
+
+            @Override
+            public void advance() {
+                next++;
+            }
+        };
+    }
+
+    @Test
+    public void backtestReplaysPricesThroughPolicies() throws InterruptedException {
+        int[] dates = {20200101, 20200102, 20200103};
+        Backtest backtest = new Backtest(1000.0, 0.0, 100);
+        backtest.addSecurity("A", 0.5, history(dates, new double[]{10.0, 10.0, 10.0}), 1);
+        backtest.addSecurity("B", 0.5, history(dates, new double[]{10.0, 30.0, 30.0}), 1);  // Triples on day 2
+        RebalancePolicy never = new RebalancePolicy(Double.MAX_VALUE, Double.MAX_VALUE, RebalanceEngine.Method.EXACT);
+        RebalancePolicy tenPercent = new RebalancePolicy(0.1, Double.MAX_VALUE, RebalanceEngine.Method.EXACT);
+        List<BacktestResult> results = backtest.runAll(Arrays.asList(never, tenPercent), 20200101, 20201231);
+
+        BacktestResult result = results.get(0);
+        assertSame(never, result.policy);
+        assertEquals(2, result.days);
+        assertEquals(0, result.trades);
+        assertEquals(0.5, result.averageDrift, EPSILON);  // 75/25 against 50/50
+        assertEquals(2000.0, result.finalValue, EPSILON);
+
+        result = results.get(1);
+        assertEquals(2, result.days);
+        assertEquals(1, result.tradeDays);
+        assertEquals(2, result.trades);                    // Sell B and buy A once
+        assertEquals(0.5, result.maxDrift, EPSILON);
+        assertTrue(result.averageDrift < 0.5);
+        assertEquals(2000.0, result.finalValue, EPSILON);
+    }
+
+    @Test
+    public void exportedPlansImportAsTargets() throws IOException {
+        Vector<Vector<Object>> data = new Vector<>();
+        RebalanceRows.createEntry(data, "Fund, Class A", "FA", 0.25, 0.5, 10.0, 5.0, 50.0)
+                .set(RebalanceRows.SELL_COL, 5.0);
+        RebalanceRows.createEntry(data, "Say \"Bond\"", "SB", 0.75, 0.5, 5.0, 10.0, 50.0)
+                .set(RebalanceRows.BUY_COL, 2.5);
+
+        for (PlanExporter.Format format : PlanExporter.Format.values()) {
+            StringWriter out = new StringWriter();
+            try (PlanExporter exporter = new PlanExporter(out, format)) {
+                exporter.write("Brokerage", data);
+                exporter.write("IRA", data.subList(0, 1));
+                exporter.write("Closed", data.subList(1, 2));
+            }
+            if (format == PlanExporter.Format.CSV) {
+                assertTrue(out.toString().contains("\nBrokerage,\"Fund, Class A\",FA,25,50,10,5,50,0,5,0\n"));
+            } else {
+                assertTrue(out.toString().contains("\"name\":\"Say \\\"Bond\\\"\",\"symbol\":\"SB\",\"target\":75,"));
+            }
+
+            TargetImporter importer = new TargetImporter();
+            importer.read(new StringReader(out.toString()), format);
+            Map<String, String> ids = new HashMap<>();
+            ids.put("Brokerage", "id-b");
+            ids.put("IRA", "id-i");
+            Map<String, Map<String, Double>> imported = new HashMap<>();
+            assertEquals(Arrays.asList("id-b", "id-i"), importer.applyTo(ids::get, imported::put));
+            assertEquals(4, importer.getRecordCount());
+            assertEquals(3, importer.getAppliedCount());
+            assertEquals(Collections.singletonList("Closed"), importer.getRejectedAccounts());
+            assertEquals(0.25, imported.get("id-b").get("Fund, Class A"), EPSILON);
+            assertEquals(0.75, imported.get("id-b").get("Say \"Bond\""), EPSILON);
+            assertEquals(Collections.singleton("Fund, Class A"), imported.get("id-i").keySet());
+        }
+    }
+
+    @Test
+    public void headlessCommandsDecodeTheirParameters() {
+        Map<String, String> parameters
+                = HeadlessCommand.parseQuery("account=My+IRA%20%26%20Roth&format=json&out=%2Ftmp%2Fplan.json&verbose");
+        assertEquals("My IRA & Roth", parameters.get("account"));
+        assertEquals("json", parameters.get("format"));
+        assertEquals("/tmp/plan.json", parameters.get("out"));
+        assertEquals("", parameters.get("verbose"));
+        assertTrue(HeadlessCommand.parseQuery("").isEmpty());
+        assertTrue(HeadlessCommand.isCommand("rebalance:plan"));
+        assertTrue(HeadlessCommand.isCommand("rebalance:all"));
+        assertFalse(HeadlessCommand.isCommand("rebalance"));
+    }
+
+    @Test
+    public void accountSettingsRoundTripByID() {
+        Map<String, String> ids = new HashMap<>();
+        ids.put("Fund", "id-fund");
+        ids.put("Gone", "id-gone");
+        Map<String, String> names = new HashMap<>();
+        names.put("id-fund", "Fund Renamed");
+        String encoded = new AccountSettings(new String[] {"Fund", "Gone", "Unlisted"}, new double[] {0.5, 0.2, 0.3},
+                0.05, "Growth").encode(ids::get);
+
+        AccountSettings decoded = AccountSettings.decode(encoded, names::get);
+        assertArrayEquals(new String[] {"Fund Renamed", "Unlisted"}, decoded.securities);
+        assertArrayEquals(new double[] {0.5, 0.3}, decoded.targets, EPSILON);
+        assertEquals(0.05, decoded.cashTarget, EPSILON);
+        assertEquals("Growth", decoded.model);
+
+        try {
+            AccountSettings.decode("AA==", names::get);
+            fail("accepted an unknown version");
+        } catch (IllegalArgumentException expected) {
+            // Settings from a newer version are not guessed at
+        }
+    }
 }